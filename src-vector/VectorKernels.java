@@ -0,0 +1,93 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * CoordinateKernels written with the incubating Vector API, so each step handles as many
+ * records as fit in the widest SIMD register of the machine. Compiling and running this class
+ * needs --add-modules jdk.incubator.vector, so it is kept out of src, which then builds on
+ * any JDK with javac src/*.java. Where the module is there, it is compiled into the same
+ * place as the rest once they are built:
+ *   javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> src-vector/*.java
+ * CoordinateKernels only loads it when the module is there and the class was built. Records
+ * past the last full vector are handled one at a time.
+ */
+public class VectorKernels extends CoordinateKernels {
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	// same shape as FLOATS, so lane i of one lines up with lane i of the other
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+	@Override
+	public PreprocessResult findCornersPop(CensusColumns columns, int start, int end) {
+		float[] lat = columns.realLatitude;
+		float[] lon = columns.longitude;
+		int[] pop = columns.population;
+		FloatVector highLat = FloatVector.broadcast(FLOATS, lat[start]);
+		FloatVector lowLat = highLat;
+		FloatVector highLon = FloatVector.broadcast(FLOATS, lon[start]);
+		FloatVector lowLon = highLon;
+		IntVector totPop = IntVector.zero(INTS);
+		int i = start;
+		int bound = start + FLOATS.loopBound(end - start);
+		for (; i < bound; i += FLOATS.length()) {
+			FloatVector la = FloatVector.fromArray(FLOATS, lat, i);
+			FloatVector lo = FloatVector.fromArray(FLOATS, lon, i);
+			highLat = highLat.max(la);
+			lowLat = lowLat.min(la);
+			highLon = highLon.max(lo);
+			lowLon = lowLon.min(lo);
+			totPop = totPop.add(IntVector.fromArray(INTS, pop, i));
+		}
+		PreprocessResult res = new PreprocessResult();
+		res.highLat = highLat.reduceLanes(VectorOperators.MAX);
+		res.lowLat = lowLat.reduceLanes(VectorOperators.MIN);
+		res.highLon = highLon.reduceLanes(VectorOperators.MAX);
+		res.lowLon = lowLon.reduceLanes(VectorOperators.MIN);
+		res.totPop = totPop.reduceLanes(VectorOperators.ADD);
+		for (; i < end; i++) {
+			res.totPop += pop[i];
+			res.highLon = Math.max(res.highLon, lon[i]);
+			res.lowLon = Math.min(res.lowLon, lon[i]);
+			res.highLat = Math.max(res.highLat, lat[i]);
+			res.lowLat = Math.min(res.lowLat, lat[i]);
+		}
+		return res;
+	}
+
+	@Override
+	public int sumInRange(CensusColumns columns, int start, int end,
+			float minLon, float minLat, float maxLon, float maxLat) {
+		float[] lat = columns.realLatitude;
+		float[] lon = columns.longitude;
+		int[] pop = columns.population;
+		IntVector population = IntVector.zero(INTS);
+		int i = start;
+		int bound = start + FLOATS.loopBound(end - start);
+		for (; i < bound; i += FLOATS.length()) {
+			FloatVector la = FloatVector.fromArray(FLOATS, lat, i);
+			FloatVector lo = FloatVector.fromArray(FLOATS, lon, i);
+			VectorMask<Float> isContained = lo.compare(VectorOperators.GE, minLon)
+					.and(la.compare(VectorOperators.GE, minLat))
+					.and(lo.compare(VectorOperators.LT, maxLon))
+					.and(la.compare(VectorOperators.LT, maxLat));
+			population = population.add(IntVector.fromArray(INTS, pop, i), isContained.cast(INTS));
+		}
+		int sum = population.reduceLanes(VectorOperators.ADD);
+		for (; i < end; i++) {
+			boolean isContained = lon[i] >= minLon && lat[i] >= minLat && lon[i] < maxLon && lat[i] < maxLat;
+			if (isContained) {
+				sum += pop[i];
+			}
+		}
+		return sum;
+	}
+
+	@Override
+	public String getName() {
+		return "vector (" + FLOATS.length() + " lanes)";
+	}
+}
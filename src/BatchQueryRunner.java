@@ -0,0 +1,319 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Answers a whole file of queries against the data PopulationQuery has already preprocessed.
+ * Lines are parsed straight from the bytes of the file, queries are answered in parallel
+ * chunks and the answers are written in order through a large buffer on a FileChannel.
+ * The output is byte-for-byte what the console loop in PopulationQuery.main prints: a
+ * prompt before every line, two answer lines per query, and a last prompt once a line
+ * is not a query or the file runs out.
+ */
+
+public class BatchQueryRunner {
+	private static final int CHUNK_SIZE = 1 << 16; // queries read before answering them
+	private static final int SLICE_SIZE = 1024; // queries answered and formatted by one task
+	private static final int READ_BUFFER_SIZE = 1 << 20;
+	private static final int WRITE_BUFFER_SIZE = 1 << 22;
+	private static final int MAX_FAST_DIGITS = 9; // anything longer may overflow an int
+
+	private static final byte[] PROMPT_LINE = line(PopulationQuery.QUERY_PROMPT);
+	private static final byte[] POPULATION_PREFIX = ascii("population of rectangle: ");
+	private static final byte[] PERCENT_PREFIX = ascii("percent of total population: ");
+	private static final byte[] NEWLINE = ascii(System.lineSeparator());
+
+	// Pre: PopulationQuery.preprocess has been called, queryFile is readable
+	// Post: answers every query in queryFile, writing the answers to outputFile. Throws
+	//       IllegalArgumentException on an invalid query once every earlier answer is written.
+	public static void run(String queryFile, String outputFile) throws IOException {
+		QueryReader reader = new QueryReader(new FileInputStream(queryFile));
+		FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		int[] coords = new int[CHUNK_SIZE * 4];
+		try {
+			boolean hasQuery = true;
+			while(hasQuery) {
+				int count = 0;
+				while(count < CHUNK_SIZE && (hasQuery = reader.nextQuery(coords, count * 4))) {
+					count++;
+				}
+				// everything before the first invalid query is answered, then we stop like the console loop
+				int valid = 0;
+				while(valid < count && PopulationQuery.isValidQuery(coords[4 * valid],
+						coords[4 * valid + 1], coords[4 * valid + 2], coords[4 * valid + 3])) {
+					valid++;
+				}
+				for(byte[] slice : answerChunk(coords, valid)) {
+					write(out, buffer, slice);
+				}
+				if(valid < count) {
+					write(out, buffer, PROMPT_LINE);
+					flush(out, buffer);
+					throw new IllegalArgumentException();
+				}
+			}
+			write(out, buffer, PROMPT_LINE);
+			flush(out, buffer);
+		} finally {
+			reader.close();
+			out.close();
+		}
+	}
+
+	// Post: answers the first count queries in coords, returning the formatted output of each
+	//       slice of SLICE_SIZE queries in order
+	private static byte[][] answerChunk(int[] coords, int count) {
+		byte[][] slices = new byte[(count + SLICE_SIZE - 1) / SLICE_SIZE][];
+		if(PopulationQuery.instanceVersion == 2) {
+			// every version 2 query already uses the whole pool, so answer them one at a time
+			for(int i = 0; i < slices.length; i++) {
+				slices[i] = answerSlice(coords, i * SLICE_SIZE, Math.min(count, (i + 1) * SLICE_SIZE));
+			}
+		} else if(slices.length > 0) {
+			PopulationQuery.fjPool.invoke(new AnswerSlices(coords, count, slices, 0, slices.length));
+		}
+		return slices;
+	}
+
+	// Post: answers queries start (inclusive) to end (exclusive), formatted exactly as the
+	//       console loop prints them
+	private static byte[] answerSlice(int[] coords, int start, int end) {
+		// prompt, two prefixes, up to 11 digits, a float and two line separators per query
+		byte[] text = new byte[(end - start) * (PROMPT_LINE.length + POPULATION_PREFIX.length
+				+ PERCENT_PREFIX.length + 11 + 16 + 2 * NEWLINE.length)];
+		int pos = 0;
+		for(int i = start; i < end; i++) {
+			Pair<Integer, Float> answer = PopulationQuery.singleInteraction(coords[4 * i],
+					coords[4 * i + 1], coords[4 * i + 2], coords[4 * i + 3]);
+			pos = copy(PROMPT_LINE, text, pos);
+			pos = copy(POPULATION_PREFIX, text, pos);
+			pos = writeInt(answer.getElementA(), text, pos);
+			pos = copy(NEWLINE, text, pos);
+			pos = copy(PERCENT_PREFIX, text, pos);
+			String percent = Float.toString(answer.getElementB());
+			for(int c = 0; c < percent.length(); c++) {
+				text[pos++] = (byte) percent.charAt(c);
+			}
+			pos = copy(NEWLINE, text, pos);
+		}
+		return Arrays.copyOf(text, pos);
+	}
+
+	// Post: writes the decimal digits of value into text at pos, returning the position after them
+	static int writeInt(int value, byte[] text, int pos) {
+		long v = value; // long so that Integer.MIN_VALUE can be negated
+		if(v < 0) {
+			text[pos++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for(long p = 10; p <= v; p *= 10) {
+			digits++;
+		}
+		for(int i = pos + digits - 1; i >= pos; i--) {
+			text[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		return pos + digits;
+	}
+
+	private static int copy(byte[] src, byte[] dest, int pos) {
+		System.arraycopy(src, 0, dest, pos, src.length);
+		return pos + src.length;
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer, byte[] bytes) throws IOException {
+		int offset = 0;
+		while(offset < bytes.length) {
+			if(!buffer.hasRemaining()) {
+				flush(out, buffer);
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static byte[] line(String s) {
+		return ascii(s + System.lineSeparator());
+	}
+
+	/*
+	 * Answers and formats the slices lo (inclusive) to hi (exclusive) of a chunk of queries
+	 * using fork-join parallelism.
+	 */
+	@SuppressWarnings("serial")
+	private static class AnswerSlices extends RecursiveAction {
+		private int[] coords;
+		private int count;
+		private byte[][] slices;
+		private int lo, hi;
+
+		public AnswerSlices(int[] coords, int count, byte[][] slices, int lo, int hi) {
+			this.coords = coords;
+			this.count = count;
+			this.slices = slices;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if(hi - lo == 1) {
+				slices[lo] = answerSlice(coords, lo * SLICE_SIZE, Math.min(count, hi * SLICE_SIZE));
+			} else {
+				int mid = (lo + hi) / 2;
+				AnswerSlices left = new AnswerSlices(coords, count, slices, lo, mid);
+				AnswerSlices right = new AnswerSlices(coords, count, slices, mid, hi);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Reads query lines straight out of a byte buffer. Lines are split the way Scanner.nextLine
+	 * splits them (\n, \r\n or \r). A line of exactly four unsigned integers separated by spaces
+	 * or tabs is parsed on the spot; anything else is handed to PopulationQuery.parseQueryLine so
+	 * that odd input is judged exactly as the console loop would judge it.
+	 */
+	private static class QueryReader {
+		private InputStream in;
+		private byte[] buf = new byte[READ_BUFFER_SIZE];
+		private int pos, limit;
+		private boolean eof;
+
+		public QueryReader(InputStream in) {
+			this.in = in;
+		}
+
+		// Post: reads the next line into coords at offset, returning false if there are no more
+		//       lines or the line is not a query
+		public boolean nextQuery(int[] coords, int offset) throws IOException {
+			int end = findLineEnd();
+			if(end < 0) {
+				return false;
+			}
+			int lineEnd = end;
+			boolean parsed = parseFast(coords, offset, pos, lineEnd);
+			if(!parsed) {
+				String input = new String(buf, pos, lineEnd - pos);
+				int[] slow = new int[4];
+				parsed = PopulationQuery.parseQueryLine(input, slow);
+				System.arraycopy(slow, 0, coords, offset, 4);
+			}
+			// skip the line terminator
+			pos = end;
+			if(pos < limit && buf[pos] == '\r') {
+				pos++;
+				if(pos == limit) {
+					fill();
+				}
+				if(pos < limit && buf[pos] == '\n') {
+					pos++;
+				}
+			} else if(pos < limit) {
+				pos++;
+			}
+			return parsed;
+		}
+
+		// Post: returns the index of the terminator of the line starting at pos (limit if the
+		//       file ends first), refilling the buffer as needed. Returns -1 at end of file.
+		private int findLineEnd() throws IOException {
+			int i = pos;
+			while(true) {
+				while(i < limit) {
+					byte b = buf[i];
+					if(b == '\n' || b == '\r') {
+						return i;
+					}
+					i++;
+				}
+				if(eof) {
+					return (i == pos) ? -1 : i;
+				}
+				i -= pos;
+				fill();
+				i += pos;
+			}
+		}
+
+		// Post: moves the unread bytes to the front of the buffer and reads more behind them
+		private void fill() throws IOException {
+			if(pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			if(limit == buf.length) { // a single line longer than the buffer
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			int read = in.read(buf, limit, buf.length - limit);
+			if(read < 0) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
+
+		private boolean parseFast(int[] coords, int offset, int start, int end) {
+			int tokens = 0;
+			int i = start;
+			while(true) {
+				while(i < end && (buf[i] == ' ' || buf[i] == '\t')) {
+					i++;
+				}
+				if(i == end) {
+					return tokens == 4;
+				}
+				if(tokens == 4) {
+					return false;
+				}
+				int value = 0;
+				int digits = 0;
+				while(i < end && buf[i] >= '0' && buf[i] <= '9') {
+					value = value * 10 + (buf[i] - '0');
+					digits++;
+					i++;
+				}
+				if(digits == 0 || digits > MAX_FAST_DIGITS || (i < end && buf[i] != ' ' && buf[i] != '\t')) {
+					return false;
+				}
+				coords[offset + tokens] = value;
+				tokens++;
+			}
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The population and coordinates of every record in a CensusData object, laid out as
+ * one primitive array per field, in one piece rather than CensusData's chunks. Scanning
+ * three arrays front to back is what the CoordinateKernels are built for, where chasing a
+ * reference per CensusGroup is not. The records are moved out of the CensusData one field
+ * at a time, dropping every chunk of the field once it is copied, so at most the records
+ * and one flat field are held at once rather than two copies of the records.
+ * Fields are public for simplicity, like CensusData. The projected latitudes are only
+ * worked out once something asks for them through project, since the scans of versions 1
+ * and 2 never need them.
+ */
+public class CensusColumns {
+	private static final int POPULATION = 0, REAL_LATITUDE = 1, LONGITUDE = 2; // fields to move
+	public int[] population;
+	public float[] realLatitude;
+	public float[] longitude;
+	public int size;
+	// null until project is called
+	public float[] latitude;
+	// null unless the binning runs on fixed-point coordinates, see QuantizedCoordinates
+	public QuantizedCoordinates quantized;
+	// null unless the records are in Hilbert order, see HilbertOrder
+	public ZoneMaps zones;
+
+	// Post: sequentially moves the fields of every record out of data, which has none left
+	//       to read afterwards
+	public CensusColumns(CensusData data) {
+		this(data, null);
+	}
+
+	// Post: moves the fields of every record out of data using fork-join parallelism, data
+	//       has none left to read afterwards
+	public CensusColumns(CensusData data, ForkJoinPool fjPool) {
+		size = data.data_size;
+		population = new int[size];
+		move(data, POPULATION, fjPool);
+		realLatitude = new float[size];
+		move(data, REAL_LATITUDE, fjPool);
+		longitude = new float[size];
+		move(data, LONGITUDE, fjPool);
+	}
+
+	// Pre: the arrays are at least size long
+	// Post: wraps columns that are already filled in, without copying them
+	public CensusColumns(int[] population, float[] realLatitude, float[] longitude, int size) {
+		this.population = population;
+		this.realLatitude = realLatitude;
+		this.longitude = longitude;
+		this.size = size;
+	}
+
+	// Post: fills latitude with the Mercator projection of every real latitude using fork-join
+	//       parallelism, unless that has already been done
+	public void project(ForkJoinPool fjPool) {
+		if (latitude == null) {
+			float[] projected = new float[size];
+			Mercator.projectAll(realLatitude, projected, size, fjPool);
+			latitude = projected;
+		}
+	}
+
+	// Post: returns the population of the records from start (inclusive) to end (exclusive)
+	//       with minLon <= longitude < maxLon and minLat <= real latitude < maxLat, using the
+	//       zone maps if there are any
+	public int sumInRange(int start, int end, float minLon, float minLat, float maxLon, float maxLat) {
+		if (zones != null) {
+			return zones.sumInRange(this, start, end, minLon, minLat, maxLon, maxLat);
+		}
+		return CoordinateKernels.INSTANCE.sumInRange(this, start, end, minLon, minLat, maxLon, maxLat);
+	}
+
+	// Post: moves one field of every record out of data, in parallel if fjPool is not null
+	private void move(CensusData data, int field, ForkJoinPool fjPool) {
+		if (fjPool == null) {
+			move(data, field, 0, data.getChunks());
+		} else {
+			fjPool.invoke(new ParallelMove(data, field, 0, data.getChunks()));
+		}
+	}
+
+	// Post: moves one field of the chunks of data from start (inclusive) to end (exclusive)
+	private void move(CensusData data, int field, int start, int end) {
+		for (int chunk = start; chunk < end; chunk++) {
+			if (field == POPULATION) {
+				data.movePopulation(chunk, population);
+			} else if (field == REAL_LATITUDE) {
+				data.moveRealLatitude(chunk, realLatitude);
+			} else {
+				data.moveLongitude(chunk, longitude);
+			}
+		}
+	}
+
+	/*
+	 * Moves one field of the chunks of a CensusData from start (inclusive) to end
+	 * (exclusive), so no two tasks ever share a chunk.
+	 */
+	@SuppressWarnings("serial")
+	private class ParallelMove extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 1; // chunks
+		private CensusData data;
+		private int field;
+		private int start, end;
+
+		public ParallelMove(CensusData data, int field, int start, int end) {
+			this.data = data;
+			this.field = field;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				move(data, field, start, end);
+			} else {
+				int mid = (start + end) / 2;
+				ParallelMove left = new ParallelMove(data, field, start, mid);
+				ParallelMove right = new ParallelMove(data, field, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
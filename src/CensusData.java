@@ -1,26 +1,117 @@
-
-// just a resizing array for holding the input
-// fields are public for simplicity
-// note array may not be full; see data_size field
-
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * A growing store of the records of the input, in chunks of CHUNK_SIZE records with one
+ * primitive array per field per chunk, and a directory of the chunks. Adding a record never
+ * copies the records already added: a full chunk stays where it is and a new one is started,
+ * and only the directory, one reference per chunk, is ever copied to grow. Given the number
+ * of records to expect, the directory is made big enough up front. Record i is at position
+ * i % CHUNK_SIZE of chunk i / CHUNK_SIZE, so work split on chunk boundaries never shares a
+ * chunk.
+ *
+ * data_size is public for simplicity; the last chunk is not full unless it is a multiple of
+ * CHUNK_SIZE. CensusColumns moves the records out a field and a chunk at a time, dropping
+ * each array as it goes, and a field that has been moved can no longer be read here.
+ */
 public class CensusData {
-	public static final int INITIAL_SIZE = 100;
-	public CensusGroup[] data;
+	public static final int CHUNK_BITS = 14;
+	public static final int CHUNK_SIZE = 1 << CHUNK_BITS; // records, 192 KB
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
 	public int data_size;
-	
+	private int[][] population;
+	private float[][] realLatitude;
+	private float[][] longitude;
+
 	public CensusData() {
-		data = new CensusGroup[INITIAL_SIZE];
+		this(0);
+	}
+
+	// Post: creates an empty store whose directory has room for expectedRecords without growing
+	public CensusData(long expectedRecords) {
+		int chunks = (int) Math.max(1, Math.min(Integer.MAX_VALUE / CHUNK_SIZE + 1,
+				(expectedRecords + CHUNK_SIZE - 1) / CHUNK_SIZE));
+		population = new int[chunks][];
+		realLatitude = new float[chunks][];
+		longitude = new float[chunks][];
 		data_size = 0;
 	}
-	
+
 	public void add(int population, float latitude, float longitude) {
-		if(data_size == data.length) { // resize
-			CensusGroup[] new_data = new CensusGroup[data.length*2];
-			for(int i=0; i < data.length; ++i)
-				new_data[i] = data[i];
-			data = new_data;
+		int chunk = data_size >>> CHUNK_BITS;
+		int offset = data_size & CHUNK_MASK;
+		if (offset == 0) {
+			startChunk(chunk);
+		}
+		this.population[chunk][offset] = population;
+		realLatitude[chunk][offset] = latitude;
+		this.longitude[chunk][offset] = longitude;
+		data_size++;
+	}
+
+	private void startChunk(int chunk) {
+		if (chunk == population.length) { // grow the directory, not the records
+			int chunks = population.length * 2;
+			population = java.util.Arrays.copyOf(population, chunks);
+			realLatitude = java.util.Arrays.copyOf(realLatitude, chunks);
+			longitude = java.util.Arrays.copyOf(longitude, chunks);
 		}
-		CensusGroup g = new CensusGroup(population,latitude,longitude); 
-		data[data_size++] = g;
+		population[chunk] = new int[CHUNK_SIZE];
+		realLatitude[chunk] = new float[CHUNK_SIZE];
+		longitude[chunk] = new float[CHUNK_SIZE];
+	}
+
+	// Post: returns the number of chunks holding records
+	public int getChunks() {
+		return (data_size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+	}
+
+	// Pre: 0 <= chunk < getChunks()
+	// Post: returns the number of records in the chunk
+	public int getChunkLength(int chunk) {
+		return Math.min(CHUNK_SIZE, data_size - (chunk << CHUNK_BITS));
+	}
+
+	// Pre: 0 <= i < data_size
+	public int getPopulation(int i) {
+		return population[i >>> CHUNK_BITS][i & CHUNK_MASK];
+	}
+
+	// Pre: 0 <= i < data_size
+	public float getRealLatitude(int i) {
+		return realLatitude[i >>> CHUNK_BITS][i & CHUNK_MASK];
+	}
+
+	// Pre: 0 <= i < data_size
+	public float getLongitude(int i) {
+		return longitude[i >>> CHUNK_BITS][i & CHUNK_MASK];
+	}
+
+	// Pre: 0 <= i < data_size
+	// Post: returns a new CensusGroup with the fields of record i
+	public CensusGroup get(int i) {
+		return new CensusGroup(getPopulation(i), getRealLatitude(i), getLongitude(i));
+	}
+
+	// Pre: 0 <= chunk < getChunks(), into has room for every record, the populations of the
+	//      chunk have not been moved yet
+	// Post: copies the populations of the chunk to their places, chunk * CHUNK_SIZE onwards,
+	//       in into, and drops the chunk's own array of them
+	public void movePopulation(int chunk, int[] into) {
+		System.arraycopy(population[chunk], 0, into, chunk << CHUNK_BITS, getChunkLength(chunk));
+		population[chunk] = null;
+	}
+
+	// Pre: as movePopulation, for the real latitudes
+	// Post: as movePopulation, for the real latitudes
+	public void moveRealLatitude(int chunk, float[] into) {
+		System.arraycopy(realLatitude[chunk], 0, into, chunk << CHUNK_BITS, getChunkLength(chunk));
+		realLatitude[chunk] = null;
+	}
+
+	// Pre: as movePopulation, for the longitudes
+	// Post: as movePopulation, for the longitudes
+	public void moveLongitude(int chunk, float[] into) {
+		System.arraycopy(longitude[chunk], 0, into, chunk << CHUNK_BITS, getChunkLength(chunk));
+		longitude[chunk] = null;
 	}
 }
@@ -0,0 +1,217 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Several census files, such as the 2000 and 2010 block files, binned into grids of the
+ * same size over the same borders, so that a square is the same piece of the map in every
+ * one of them. The borders are those of all the files together. The files are parsed, and
+ * their grids built and summed, all at once with fork-join parallelism, and a query is one
+ * O(1) lookup in the grid of sums of each file.
+ *
+ * Changes are measured from the first file, the baseline. When the baseline is the file
+ * PopulationQuery has already preprocessed, its records are used as they are rather than
+ * parsed again. Unless the other files lie within its borders, the borders here are wider
+ * than the ones PopulationQuery found, and PopulationQuery moves onto them, so its squares
+ * are the ones compared.
+ */
+public class CensusVintages {
+	private String[] filenames;
+	private PreprocessResult bounds; // totPop is that of all the files together
+	private int[] totPop;
+	private LongGrid[] grids;
+	private int columns, rows;
+
+	/*
+	 * The answer to one query for every file.
+	 */
+	public static class Comparison {
+		public int[] population;
+		public float[] percent; // of the file's own total population
+		public int[] change; // from the baseline
+		public float[] percentChange; // from the baseline, NaN if the baseline has no one there
+
+		private Comparison(int files) {
+			population = new int[files];
+			percent = new float[files];
+			change = new int[files];
+			percentChange = new float[files];
+		}
+	}
+
+	// Pre: every file is valid and readable, columns and rows positive, baseline is null or
+	//      the records of the first file, with at least one record
+	// Post: parses every file, except the first if its records are given, and builds its grid
+	//       of sums, the files in parallel
+	public CensusVintages(String[] filenames, CensusColumns baseline, int columns, int rows,
+			ForkJoinPool fjPool) {
+		if (filenames.length == 0) {
+			throw new IllegalArgumentException("no files to compare");
+		}
+		this.filenames = filenames.clone();
+		this.columns = columns;
+		this.rows = rows;
+		int files = filenames.length;
+		CensusColumns[] data = new CensusColumns[files];
+		PreprocessResult[] corners = new PreprocessResult[files];
+		int first = (baseline == null) ? 0 : 1;
+		LoadFile[] loads = new LoadFile[files - first];
+		for (int i = first; i < files; i++) {
+			loads[i - first] = new LoadFile(filenames[i], data, corners, i, fjPool);
+		}
+		fjPool.invoke(new RunAll(loads));
+		if (baseline != null) {
+			data[0] = baseline;
+			corners[0] = fjPool.invoke(new FindCornersPopParalell(baseline, 0, baseline.size));
+		}
+
+		// the borders of all the files, found from real latitudes and then projected
+		totPop = new int[files];
+		for (int i = 0; i < files; i++) {
+			totPop[i] = corners[i].totPop;
+			bounds = StreamingPreprocess.combine(bounds, corners[i]);
+		}
+		bounds.highLat = Mercator.projectLatitude(bounds.highLat);
+		bounds.lowLat = Mercator.projectLatitude(bounds.lowLat);
+
+		float latGridSize = Math.abs((bounds.highLat - bounds.lowLat) / rows);
+		float lonGridSize = Math.abs((bounds.highLon - bounds.lowLon) / columns);
+		GridInfo ginfo = new GridInfo(columns, rows, latGridSize, lonGridSize, bounds.lowLat, bounds.lowLon);
+		grids = new LongGrid[files];
+		BuildGrid[] builds = new BuildGrid[files];
+		for (int i = 0; i < files; i++) {
+			grids[i] = new LongGrid(columns, rows);
+			builds[i] = new BuildGrid(data[i], ginfo, grids[i], fjPool);
+		}
+		fjPool.invoke(new RunAll(builds));
+	}
+
+	// Post: returns the number of files
+	public int getFiles() {
+		return filenames.length;
+	}
+
+	// Post: returns the name of file i
+	public String getFilename(int i) {
+		return filenames[i];
+	}
+
+	// Post: returns the borders of all the files, with projected latitudes, and the total
+	//       population of file i
+	public PreprocessResult getBorders(int i) {
+		PreprocessResult borders = new PreprocessResult();
+		borders.lowLat = bounds.lowLat;
+		borders.highLat = bounds.highLat;
+		borders.lowLon = bounds.lowLon;
+		borders.highLon = bounds.highLon;
+		borders.totPop = totPop[i];
+		return borders;
+	}
+
+	// Post: returns the grid of sums of file i, over the borders of all the files
+	public LongGrid getGrid(int i) {
+		return grids[i];
+	}
+
+	// Post: returns true if the query lies inside the grids and is not inverted
+	public boolean isValidQuery(int w, int s, int e, int n) {
+		return w >= 1 && s >= 1 && e <= columns && n <= rows && e >= w && n >= s;
+	}
+
+	// Pre: query is valid, else throws IllegalArgumentException
+	// Post: returns the population of the rectangle in every file, with the change from the baseline
+	public Comparison compare(int w, int s, int e, int n) {
+		if (!isValidQuery(w, s, e, n)) {
+			throw new IllegalArgumentException();
+		}
+		Comparison result = new Comparison(grids.length);
+		for (int i = 0; i < grids.length; i++) {
+			int population = (int) grids[i].population(w, s, e, n);
+			result.population[i] = population;
+			result.percent[i] = (float) (Math.round(100 * (float) (100.0 * population / totPop[i])) / 100.0);
+			result.change[i] = population - result.population[0];
+			result.percentChange[i] = (result.population[0] == 0) ? Float.NaN
+					: (float) (Math.round(100 * (float) (100.0 * result.change[i] / result.population[0])) / 100.0);
+		}
+		return result;
+	}
+
+	/*
+	 * Runs every task at once.
+	 */
+	@SuppressWarnings("serial")
+	private static class RunAll extends RecursiveAction {
+		private RecursiveAction[] tasks;
+
+		public RunAll(RecursiveAction[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	/*
+	 * Parses file i and finds its corners, with real latitudes, and total population.
+	 */
+	@SuppressWarnings("serial")
+	private static class LoadFile extends RecursiveAction {
+		private String filename;
+		private CensusColumns[] data;
+		private PreprocessResult[] corners;
+		private int i;
+		private ForkJoinPool fjPool;
+
+		public LoadFile(String filename, CensusColumns[] data, PreprocessResult[] corners, int i,
+				ForkJoinPool fjPool) {
+			this.filename = filename;
+			this.data = data;
+			this.corners = corners;
+			this.i = i;
+			this.fjPool = fjPool;
+		}
+
+		@Override
+		protected void compute() {
+			CensusData census = PopulationQuery.parse(filename);
+			if (census.data_size == 0) {
+				System.err.println("No records in " + filename);
+				System.exit(1);
+			}
+			data[i] = new CensusColumns(census, fjPool);
+			if (RecordCompaction.ENABLED) {
+				data[i] = new RecordCompaction(data[i], fjPool).getColumns();
+			}
+			corners[i] = new FindCornersPopParalell(data[i], 0, data[i].size).invoke();
+		}
+	}
+
+	/*
+	 * Bins one file into its grid and sums it.
+	 */
+	@SuppressWarnings("serial")
+	private static class BuildGrid extends RecursiveAction {
+		private CensusColumns data;
+		private GridInfo ginfo;
+		private LongGrid grid;
+		private ForkJoinPool fjPool;
+
+		public BuildGrid(CensusColumns data, GridInfo ginfo, LongGrid grid, ForkJoinPool fjPool) {
+			this.data = data;
+			this.ginfo = ginfo;
+			this.grid = grid;
+			this.fjPool = fjPool;
+		}
+
+		@Override
+		protected void compute() {
+			data.project(fjPool);
+			PopulationQuery.buildGridParallel(data, ginfo, grid, fjPool);
+			grid.toSums(fjPool);
+		}
+	}
+}
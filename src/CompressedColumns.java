@@ -0,0 +1,435 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The records of a CensusColumns packed into far fewer bits, for versions 1 and 2, which
+ * keep every record for every query. The records are cut into blocks of BLOCK_SIZE, and
+ * each field of a block is stored relative to the smallest value of that field in the
+ * block, in only as many bits as the largest difference needs. The coordinates are stored
+ * by their float bits, which for floats of one sign are in the same order as the floats, so
+ * records near each other on the map have bits close together. The records should be packed
+ * in Hilbert order (HilbertOrder.order), which puts every block in a small part of the map.
+ * They are read through the order straight from the CensusColumns, so packing holds the
+ * records, one int per record for the order and the packed bits, never a reordered copy.
+ * Nothing is rounded: every record decodes to exactly the floats and int it had.
+ *
+ * Every field of a block has a fixed width, so record j of a block is found without
+ * decoding the ones before it. A scan compares each record's coordinates straight from the
+ * packed bits and only decodes the population of records in its rectangle. Every block also
+ * keeps the box around its records and their total, so scans skip or take whole the
+ * blocks their rectangle misses or covers, like ZoneMaps.
+ *
+ * Enabled with the system property pq.compress=true.
+ */
+public class CompressedColumns {
+	public static final boolean ENABLED = Boolean.getBoolean("pq.compress");
+	public static final int BLOCK_SIZE = 256;
+	private static final int SEQUENTIAL_CUTOFF = 64; // blocks
+	private static final int MIN_RECORDS_PER_BIN_TASK = 1 << 16;
+	public final int size;
+	private long[] words;
+	// for every block: where its bits start in words, and the base and width of every field
+	private int[] wordStart;
+	private int[] latitudeBase, longitudeBase, populationBase;
+	private byte[] latitudeWidth, longitudeWidth, populationWidth;
+	// for every block: its box, with real latitudes, all inclusive, and its total population
+	private float[] minLon, minLat, maxLon, maxLat;
+	private int[] blockPopulation;
+
+	// Pre: data has at least one record, order is null or holds every index of data once
+	// Post: packs every record of data, record order[i] as record i if there is an order,
+	//       using fork-join parallelism, leaving data as it was
+	public CompressedColumns(CensusColumns data, int[] order, ForkJoinPool fjPool) {
+		size = data.size;
+		int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		wordStart = new int[blocks + 1];
+		latitudeBase = new int[blocks];
+		longitudeBase = new int[blocks];
+		populationBase = new int[blocks];
+		latitudeWidth = new byte[blocks];
+		longitudeWidth = new byte[blocks];
+		populationWidth = new byte[blocks];
+		minLon = new float[blocks];
+		minLat = new float[blocks];
+		maxLon = new float[blocks];
+		maxLat = new float[blocks];
+		blockPopulation = new int[blocks];
+		fjPool.invoke(new Measure(data, order, 0, blocks));
+		// every block starts on a word of its own, so no two blocks write to one word
+		long position = 0;
+		for (int block = 0; block < blocks; block++) {
+			long bits = (long) blockLength(block)
+					* (latitudeWidth[block] + longitudeWidth[block] + populationWidth[block]);
+			wordStart[block] = (int) position;
+			position += (bits + 63) / 64;
+			if (position > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("too many records to pack");
+			}
+		}
+		wordStart[blocks] = (int) position;
+		words = new long[(int) position];
+		fjPool.invoke(new Encode(data, order, 0, blocks));
+	}
+
+	// Post: returns the number of blocks
+	public int getBlocks() {
+		return blockPopulation.length;
+	}
+
+	// Post: returns about how many bytes the packed records take, blocks included
+	public long getBytes() {
+		return 8L * words.length + 39L * getBlocks();
+	}
+
+	// Post: returns how many times smaller than plain columns, 12 bytes a record, this is
+	public double getRatio() {
+		return 12.0 * size / getBytes();
+	}
+
+	public String toString() {
+		return size + " records in " + getBytes() + " bytes, " + String.format("%.2f", 8.0 * getBytes() / size)
+				+ " bits a record, ratio " + String.format("%.2f", getRatio());
+	}
+
+	// Pre: 0 <= block < getBlocks(), the arrays have room for BLOCK_SIZE records
+	// Post: decodes the records of the block into the arrays, returning how many there are
+	public int decodeBlock(int block, int[] population, float[] realLatitude, float[] longitude) {
+		int length = blockLength(block);
+		for (int j = 0; j < length; j++) {
+			population[j] = population(block, j);
+			realLatitude[j] = realLatitude(block, j);
+			longitude[j] = longitude(block, j);
+		}
+		return length;
+	}
+
+	// Post: returns the population of the records from start (inclusive) to end (exclusive)
+	//       with minLon <= longitude < maxLon and minLat <= real latitude < maxLat, the same
+	//       as CoordinateKernels.sumInRange
+	public int sumInRange(int start, int end, float west, float south, float east, float north) {
+		int total = 0;
+		for (int i = start; i < end;) {
+			int block = i / BLOCK_SIZE;
+			int blockStart = block * BLOCK_SIZE;
+			int blockEnd = blockStart + blockLength(block);
+			int stop = Math.min(blockEnd, end);
+			if (maxLon[block] < west || minLon[block] >= east || maxLat[block] < south || minLat[block] >= north) {
+				// no record of the block is in the rectangle
+			} else if (i == blockStart && stop == blockEnd && minLon[block] >= west && maxLon[block] < east
+					&& minLat[block] >= south && maxLat[block] < north) {
+				total += blockPopulation[block];
+			} else {
+				total += sumInBlock(block, i - blockStart, stop - blockStart, west, south, east, north);
+			}
+			i = stop;
+		}
+		return total;
+	}
+
+	// Post: like sumInRange, using fork-join parallelism
+	public int sumInRange(int start, int end, float west, float south, float east, float north, ForkJoinPool fjPool) {
+		return fjPool.invoke(new Scan(start, end, new float[] {west, south, east, north}));
+	}
+
+	// Pre: ginfo is a grid over the borders of these records, with projected latitudes,
+	//      populationGrid is all zeros and the size of ginfo's grid
+	// Post: fills populationGrid with the population of every square using fork-join
+	//       parallelism, the same grid the grid-based versions build from the unpacked records
+	public void bin(GridInfo ginfo, LongGrid populationGrid, ForkJoinPool fjPool) {
+		int blocksPerTask = Math.max(MIN_RECORDS_PER_BIN_TASK / BLOCK_SIZE,
+				(getBlocks() + fjPool.getParallelism() - 1) / fjPool.getParallelism());
+		LongGrid grid = fjPool.invoke(new Bin(ginfo, blocksPerTask, 0, getBlocks()));
+		fjPool.invoke(new MultiGridBuild.AddGrid(populationGrid, grid, 0,
+				(long) populationGrid.getColumns() * populationGrid.getRows()));
+	}
+
+	private int blockLength(int block) {
+		return Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+	}
+
+	// Post: returns the population of records from j (inclusive) to end (exclusive) of the
+	//       block in the rectangle, comparing the coordinates straight from their bits
+	private int sumInBlock(int block, int j, int end, float west, float south, float east, float north) {
+		long latStart = 64L * wordStart[block];
+		int latWidth = latitudeWidth[block];
+		long lonStart = latStart + (long) latWidth * blockLength(block);
+		int lonWidth = longitudeWidth[block];
+		int latBase = latitudeBase[block], lonBase = longitudeBase[block];
+		int total = 0;
+		for (; j < end; j++) {
+			float lat = Float.intBitsToFloat(latBase + (int) read(latStart + (long) j * latWidth, latWidth));
+			if (lat < south || lat >= north) {
+				continue; // no need to decode the rest
+			}
+			float lon = Float.intBitsToFloat(lonBase + (int) read(lonStart + (long) j * lonWidth, lonWidth));
+			if (lon >= west && lon < east) {
+				total += population(block, j);
+			}
+		}
+		return total;
+	}
+
+	private float realLatitude(int block, int j) {
+		int width = latitudeWidth[block];
+		long bit = 64L * wordStart[block] + (long) j * width;
+		return Float.intBitsToFloat(latitudeBase[block] + (int) read(bit, width));
+	}
+
+	private float longitude(int block, int j) {
+		int width = longitudeWidth[block];
+		long bit = 64L * wordStart[block] + (long) latitudeWidth[block] * blockLength(block) + (long) j * width;
+		return Float.intBitsToFloat(longitudeBase[block] + (int) read(bit, width));
+	}
+
+	private int population(int block, int j) {
+		int width = populationWidth[block];
+		long bit = 64L * wordStart[block] + (long) (latitudeWidth[block] + longitudeWidth[block]) * blockLength(block)
+				+ (long) j * width;
+		return populationBase[block] + (int) read(bit, width);
+	}
+
+	// Post: returns the width bits at bit of words, 0 <= width <= 32
+	private long read(long bit, int width) {
+		if (width == 0) {
+			return 0;
+		}
+		int word = (int) (bit >>> 6);
+		int shift = (int) bit & 63;
+		long value = words[word] >>> shift;
+		if (shift + width > 64) {
+			value |= words[word + 1] << (64 - shift);
+		}
+		return value & ((1L << width) - 1);
+	}
+
+	// Pre: value fits in width bits, the bits are still zero
+	// Post: writes value at bit of words
+	private void write(long bit, int width, long value) {
+		if (width == 0) {
+			return;
+		}
+		int word = (int) (bit >>> 6);
+		int shift = (int) bit & 63;
+		words[word] |= value << shift;
+		if (shift + width > 64) {
+			words[word + 1] |= value >>> (64 - shift);
+		}
+	}
+
+	// Post: returns the index in the packed data's records of its record i
+	private static int index(int[] order, int i) {
+		return (order == null) ? i : order[i];
+	}
+
+	// Post: returns the bits needed for every value from min to max, as unsigned differences
+	private static byte width(int min, int max) {
+		long range = (long) max - min;
+		return (byte) (64 - Long.numberOfLeadingZeros(range));
+	}
+
+	/*
+	 * Works out the bases, widths, box and population of blocks minBlock (inclusive) to
+	 * maxBlock (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private class Measure extends RecursiveAction {
+		private CensusColumns data;
+		private int[] order;
+		private int minBlock, maxBlock;
+
+		public Measure(CensusColumns data, int[] order, int minBlock, int maxBlock) {
+			this.data = data;
+			this.order = order;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= SEQUENTIAL_CUTOFF) {
+				for (int block = minBlock; block < maxBlock; block++) {
+					int start = block * BLOCK_SIZE;
+					int end = start + blockLength(block);
+					int minLatBits = Integer.MAX_VALUE, maxLatBits = Integer.MIN_VALUE;
+					int minLonBits = Integer.MAX_VALUE, maxLonBits = Integer.MIN_VALUE;
+					int minPop = Integer.MAX_VALUE, maxPop = Integer.MIN_VALUE;
+					int first = index(order, start);
+					float west = data.longitude[first], east = west;
+					float south = data.realLatitude[first], north = south;
+					int total = 0;
+					for (int i = start; i < end; i++) {
+						int r = index(order, i);
+						float lat = data.realLatitude[r];
+						float lon = data.longitude[r];
+						int pop = data.population[r];
+						int latBits = Float.floatToIntBits(lat);
+						int lonBits = Float.floatToIntBits(lon);
+						minLatBits = Math.min(minLatBits, latBits);
+						maxLatBits = Math.max(maxLatBits, latBits);
+						minLonBits = Math.min(minLonBits, lonBits);
+						maxLonBits = Math.max(maxLonBits, lonBits);
+						minPop = Math.min(minPop, pop);
+						maxPop = Math.max(maxPop, pop);
+						west = Math.min(west, lon);
+						east = Math.max(east, lon);
+						south = Math.min(south, lat);
+						north = Math.max(north, lat);
+						total += pop;
+					}
+					latitudeBase[block] = minLatBits;
+					longitudeBase[block] = minLonBits;
+					populationBase[block] = minPop;
+					latitudeWidth[block] = width(minLatBits, maxLatBits);
+					longitudeWidth[block] = width(minLonBits, maxLonBits);
+					populationWidth[block] = width(minPop, maxPop);
+					minLon[block] = west;
+					minLat[block] = south;
+					maxLon[block] = east;
+					maxLat[block] = north;
+					blockPopulation[block] = total;
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				Measure left = new Measure(data, order, minBlock, mid);
+				Measure right = new Measure(data, order, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Packs the records of blocks minBlock (inclusive) to maxBlock (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private class Encode extends RecursiveAction {
+		private CensusColumns data;
+		private int[] order;
+		private int minBlock, maxBlock;
+
+		public Encode(CensusColumns data, int[] order, int minBlock, int maxBlock) {
+			this.data = data;
+			this.order = order;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= SEQUENTIAL_CUTOFF) {
+				PopulationQuery.checkCancelled();
+				for (int block = minBlock; block < maxBlock; block++) {
+					int start = block * BLOCK_SIZE;
+					int length = blockLength(block);
+					long bit = 64L * wordStart[block];
+					for (int j = 0; j < length; j++, bit += latitudeWidth[block]) {
+						int bits = Float.floatToIntBits(data.realLatitude[index(order, start + j)]);
+						write(bit, latitudeWidth[block], (bits - latitudeBase[block]) & 0xFFFFFFFFL);
+					}
+					for (int j = 0; j < length; j++, bit += longitudeWidth[block]) {
+						int bits = Float.floatToIntBits(data.longitude[index(order, start + j)]);
+						write(bit, longitudeWidth[block], (bits - longitudeBase[block]) & 0xFFFFFFFFL);
+					}
+					for (int j = 0; j < length; j++, bit += populationWidth[block]) {
+						write(bit, populationWidth[block], (data.population[index(order, start + j)] - populationBase[block]) & 0xFFFFFFFFL);
+					}
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				Encode left = new Encode(data, order, minBlock, mid);
+				Encode right = new Encode(data, order, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Runs sumInRange over the records from start (inclusive) to end (exclusive) in parallel,
+	 * split on block boundaries.
+	 */
+	@SuppressWarnings("serial")
+	private class Scan extends RecursiveTask<Integer> {
+		private int start, end;
+		private float[] bounds;
+
+		public Scan(int start, int end, float[] bounds) {
+			this.start = start;
+			this.end = end;
+			this.bounds = bounds;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF * BLOCK_SIZE) {
+				return sumInRange(start, end, bounds[0], bounds[1], bounds[2], bounds[3]);
+			} else {
+				int mid = (start + end) / 2;
+				mid -= mid % BLOCK_SIZE;
+				Scan left = new Scan(start, mid, bounds);
+				Scan right = new Scan(mid, end, bounds);
+				left.fork();
+				int rightTotal = right.compute();
+				return left.join() + rightTotal;
+			}
+		}
+	}
+
+	/*
+	 * Bins the records of blocks minBlock (inclusive) to maxBlock (exclusive) into a grid of
+	 * their own, decoding a block at a time.
+	 */
+	@SuppressWarnings("serial")
+	private class Bin extends RecursiveTask<LongGrid> {
+		private GridInfo ginfo;
+		private int blocksPerTask;
+		private int minBlock, maxBlock;
+
+		public Bin(GridInfo ginfo, int blocksPerTask, int minBlock, int maxBlock) {
+			this.ginfo = ginfo;
+			this.blocksPerTask = blocksPerTask;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected LongGrid compute() {
+			if (maxBlock - minBlock <= blocksPerTask) {
+				LongGrid grid = new LongGrid(ginfo.getMaxCols(), ginfo.getMaxRows());
+				int[] population = new int[BLOCK_SIZE];
+				float[] realLatitude = new float[BLOCK_SIZE];
+				float[] longitude = new float[BLOCK_SIZE];
+				for (int block = minBlock; block < maxBlock; block++) {
+					int length = decodeBlock(block, population, realLatitude, longitude);
+					for (int j = 0; j < length; j++) {
+						float latitude = Mercator.projectLatitude(realLatitude[j]);
+						int x = (int) Math.floor((longitude[j] - ginfo.getMinLon())/ginfo.getLonGridSize());
+						int y = (int) Math.floor((latitude - ginfo.getMinLat())/ginfo.getLatGridSize());
+						if (x == ginfo.getMaxCols()) {
+							x--; //So the eastmost location gets added to the grid
+						}
+						if (y == ginfo.getMaxRows()) {
+							y--; //So the northernmost location gets added to the grid
+						}
+						grid.add(x, y, population[j]);
+					}
+				}
+				return grid;
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				Bin left = new Bin(ginfo, blocksPerTask, minBlock, mid);
+				Bin right = new Bin(ginfo, blocksPerTask, mid, maxBlock);
+				left.fork();
+				LongGrid grid = right.compute();
+				LongGrid leftGrid = left.join();
+				new MultiGridBuild.AddGrid(grid, leftGrid, 0, (long) grid.getColumns() * grid.getRows()).invoke();
+				return grid;
+			}
+		}
+	}
+}
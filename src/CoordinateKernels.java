@@ -0,0 +1,97 @@
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The two loops every scan of the census data comes down to: finding the corners of the map
+ * and the total population, and summing the population inside a rectangle. The default
+ * implementation is plain Java over CensusColumns. When the JVM was started with
+ * --add-modules jdk.incubator.vector and VectorKernels, which lives in src-vector, was
+ * built, its SIMD implementation is used instead.
+ * The system property pq.kernels=scalar or pq.kernels=vector forces one or the other.
+ * Both give exactly the same answers, since they make the same float comparisons and the
+ * same int additions, only in a different order.
+ */
+public abstract class CoordinateKernels {
+	public static final CoordinateKernels SCALAR = new ScalarKernels();
+	public static final CoordinateKernels INSTANCE = choose();
+
+	// Pre: start < end
+	// Post: returns the highest and lowest real latitude and longitude and the total
+	//       population of the records from start (inclusive) to end (exclusive)
+	public abstract PreprocessResult findCornersPop(CensusColumns columns, int start, int end);
+
+	// Post: returns the population of the records from start (inclusive) to end (exclusive)
+	//       with minLon <= longitude < maxLon and minLat <= real latitude < maxLat
+	public abstract int sumInRange(CensusColumns columns, int start, int end,
+			float minLon, float minLat, float maxLon, float maxLat);
+
+	// Post: returns a short name for reports
+	public abstract String getName();
+
+	// Post: returns the SIMD kernels, or null if the Vector API is not available
+	public static CoordinateKernels vector() {
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			return null;
+		}
+		try {
+			// loaded by name so that VectorKernels is never linked when the module is missing
+			return (CoordinateKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	private static CoordinateKernels choose() {
+		String choice = System.getProperty("pq.kernels", "");
+		if (choice.equals("scalar")) {
+			return SCALAR;
+		}
+		CoordinateKernels vector = vector();
+		return (vector == null) ? SCALAR : vector;
+	}
+
+	/*
+	 * The loops as plain Java.
+	 */
+	private static class ScalarKernels extends CoordinateKernels {
+		@Override
+		public PreprocessResult findCornersPop(CensusColumns columns, int start, int end) {
+			float[] lat = columns.realLatitude;
+			float[] lon = columns.longitude;
+			int[] pop = columns.population;
+			PreprocessResult res = new PreprocessResult();
+			res.highLat = lat[start];
+			res.lowLat = lat[start];
+			res.highLon = lon[start];
+			res.lowLon = lon[start];
+			for (int i = start; i < end; i++) {
+				res.totPop += pop[i];
+				res.highLon = Math.max(res.highLon, lon[i]);
+				res.lowLon = Math.min(res.lowLon, lon[i]);
+				res.highLat = Math.max(res.highLat, lat[i]);
+				res.lowLat = Math.min(res.lowLat, lat[i]);
+			}
+			return res;
+		}
+
+		@Override
+		public int sumInRange(CensusColumns columns, int start, int end,
+				float minLon, float minLat, float maxLon, float maxLat) {
+			float[] lat = columns.realLatitude;
+			float[] lon = columns.longitude;
+			int[] pop = columns.population;
+			int population = 0;
+			for (int i = start; i < end; i++) {
+				boolean isContained = lon[i] >= minLon && lat[i] >= minLat && lon[i] < maxLon && lat[i] < maxLat;
+				if (isContained) {
+					population += pop[i];
+				}
+			}
+			return population;
+		}
+
+		@Override
+		public String getName() {
+			return "scalar";
+		}
+	}
+}
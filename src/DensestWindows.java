@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Searches over a grid of sums for the most populous parts of the map, using fork-join
+ * parallelism. Rectangles are in query coordinates: columns w to e and rows s to n,
+ * counting from 1 and inclusive.
+ *
+ * topWindows finds the k most populous windows of a fixed size that do not overlap. The
+ * population of every window is read off the sums in O(1), all of them in parallel, and the
+ * windows are sorted by population. They are then taken greedily, most populous first,
+ * skipping any that overlap a window already taken.
+ *
+ * densestRegion finds the rectangle of any size with the most people above a threshold
+ * density, the largest sum of (population - threshold) over its squares: the 2D maximum
+ * subarray. Every pair of edges along the shorter side of the grid fixes a strip, and a
+ * Kadane scan along the strip finds its best rectangle, which is O(short^2 * long) work,
+ * split between tasks by the first edge.
+ */
+public class DensestWindows {
+	private static final long INDEX_MASK = 0xFFFFFFFFL; // window indexes take the low half of a key
+
+	/*
+	 * A rectangle of the grid and its population.
+	 */
+	public static class Window {
+		public int w, s, e, n;
+		public long population;
+
+		public Window(int w, int s, int e, int n, long population) {
+			this.w = w;
+			this.s = s;
+			this.e = e;
+			this.n = n;
+			this.population = population;
+		}
+
+		// Post: returns true if this and other share a square
+		public boolean overlaps(Window other) {
+			return w <= other.e && other.w <= e && s <= other.n && other.s <= n;
+		}
+
+		public String toString() {
+			return w + " " + s + " " + e + " " + n + ": " + population;
+		}
+	}
+
+	// Pre: sums holds sums (LongGrid.toSums), 1 <= width <= columns, 1 <= height <= rows, k >= 0
+	// Post: returns at most k windows of width by height squares that do not overlap, the most
+	//       populous first, chosen greedily by population. Ties go to the window furthest south,
+	//       then west.
+	public static List<Window> topWindows(LongGrid sums, int width, int height, int k, ForkJoinPool fjPool) {
+		if (width < 1 || height < 1 || width > sums.getColumns() || height > sums.getRows() || k < 0) {
+			throw new IllegalArgumentException();
+		}
+		int across = sums.getColumns() - width + 1;
+		int up = sums.getRows() - height + 1;
+		if ((long) across * up > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many windows to sort: " + (long) across * up);
+		}
+		long[] keys = new long[across * up];
+		fjPool.invoke(new WindowKeys(sums, width, height, keys, 0, up));
+		Arrays.parallelSort(keys);
+
+		List<Window> chosen = new ArrayList<Window>();
+		for (int i = keys.length - 1; i >= 0 && chosen.size() < k; i--) {
+			int index = (int) (INDEX_MASK - (keys[i] & INDEX_MASK));
+			int x = index % across;
+			int y = index / across;
+			Window window = new Window(x + 1, y + 1, x + width, y + height, keys[i] >>> 32);
+			boolean overlaps = false;
+			for (Window other : chosen) {
+				overlaps |= window.overlaps(other);
+			}
+			if (!overlaps) {
+				chosen.add(window);
+			}
+		}
+		return chosen;
+	}
+
+	// Pre: sums holds sums (LongGrid.toSums)
+	// Post: returns the rectangle with the largest population minus threshold people for each
+	//       of its squares, with its population. Returns null if no square has more than
+	//       threshold people.
+	public static Window densestRegion(LongGrid sums, long threshold, ForkJoinPool fjPool) {
+		int columns = sums.getColumns();
+		int rows = sums.getRows();
+		// strips run along the longer side, so lines[a] is one line across it
+		boolean byRow = rows <= columns;
+		int lineCount = byRow ? rows : columns;
+		int lineLength = byRow ? columns : rows;
+		long[][] lines = new long[lineCount][lineLength];
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < columns; x++) {
+				long population = sums.get(x, y);
+				if (x > 0) {
+					population -= sums.get(x - 1, y);
+				}
+				if (y > 0) {
+					population -= sums.get(x, y - 1);
+				}
+				if (x > 0 && y > 0) {
+					population += sums.get(x - 1, y - 1);
+				}
+				if (byRow) {
+					lines[y][x] = population - threshold;
+				} else {
+					lines[x][y] = population - threshold;
+				}
+			}
+		}
+		long[] best = fjPool.invoke(new BestStrip(lines, 0, lineCount));
+		if (best[0] <= 0) {
+			return null;
+		}
+		// best is {excess, first line, last line, start, end}
+		int firstLine = (int) best[1] + 1, lastLine = (int) best[2] + 1;
+		int start = (int) best[3] + 1, end = (int) best[4] + 1;
+		if (byRow) {
+			return new Window(start, firstLine, end, lastLine, sums.population(start, firstLine, end, lastLine));
+		}
+		return new Window(firstLine, start, lastLine, end, sums.population(firstLine, start, lastLine, end));
+	}
+
+	/*
+	 * Works out the key of every window whose southern row is from minY (inclusive) to maxY
+	 * (exclusive): its population above the complement of its index, so that sorting puts
+	 * the most populous last and, among equals, the first index last.
+	 */
+	@SuppressWarnings("serial")
+	private static class WindowKeys extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 1 << 14; // windows
+		private LongGrid sums;
+		private int width, height;
+		private long[] keys;
+		private int minY, maxY;
+
+		public WindowKeys(LongGrid sums, int width, int height, long[] keys, int minY, int maxY) {
+			this.sums = sums;
+			this.width = width;
+			this.height = height;
+			this.keys = keys;
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+
+		@Override
+		protected void compute() {
+			int across = sums.getColumns() - width + 1;
+			if (maxY - minY <= 1 || (long) (maxY - minY) * across <= SEQUENTIAL_CUTOFF) {
+				PopulationQuery.checkCancelled();
+				for (int y = minY; y < maxY; y++) {
+					for (int x = 0; x < across; x++) {
+						int index = y * across + x;
+						long population = sums.population(x + 1, y + 1, x + width, y + height);
+						keys[index] = (population << 32) | (INDEX_MASK - index);
+					}
+				}
+			} else {
+				int midY = (minY + maxY) / 2;
+				WindowKeys left = new WindowKeys(sums, width, height, keys, minY, midY);
+				WindowKeys right = new WindowKeys(sums, width, height, keys, midY, maxY);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Finds the best rectangle whose first line is from minLine (inclusive) to maxLine
+	 * (exclusive), as {excess, first line, last line, start, end}. The first best found wins.
+	 */
+	@SuppressWarnings("serial")
+	private static class BestStrip extends RecursiveTask<long[]> {
+		private long[][] lines;
+		private int minLine, maxLine;
+
+		public BestStrip(long[][] lines, int minLine, int maxLine) {
+			this.lines = lines;
+			this.minLine = minLine;
+			this.maxLine = maxLine;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (maxLine - minLine <= 1) {
+				long[] best = {Long.MIN_VALUE, 0, 0, 0, 0};
+				long[] strip = new long[lines[0].length];
+				for (int last = minLine; last < lines.length; last++) {
+					PopulationQuery.checkCancelled();
+					long[] line = lines[last];
+					// Kadane's scan of the strip from line minLine to line last
+					long running = 0;
+					int runStart = 0;
+					for (int i = 0; i < strip.length; i++) {
+						strip[i] += line[i];
+						if (running <= 0) {
+							running = strip[i];
+							runStart = i;
+						} else {
+							running += strip[i];
+						}
+						if (running > best[0]) {
+							best[0] = running;
+							best[1] = minLine;
+							best[2] = last;
+							best[3] = runStart;
+							best[4] = i;
+						}
+					}
+				}
+				return best;
+			} else {
+				int midLine = (minLine + maxLine) / 2;
+				BestStrip left = new BestStrip(lines, minLine, midLine);
+				BestStrip right = new BestStrip(lines, midLine, maxLine);
+				left.fork();
+				long[] rightBest = right.compute();
+				long[] leftBest = left.join();
+				return (rightBest[0] > leftBest[0]) ? rightBest : leftBest;
+			}
+		}
+	}
+}
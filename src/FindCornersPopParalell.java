@@ -6,19 +6,20 @@ import java.util.concurrent.RecursiveTask;
  * Helper class used to parallelize the preprocessing of the CensusData. Returns
  * a PreprocessResult object which contains the maximum and minimum latitude and
  * longitude of any CensusGroup in the CensusData. Also sums the population of the
- * CensusGroups.
+ * CensusGroups. Works on the CensusColumns copy of the data so that each leaf can
+ * run the CoordinateKernels.
  */
 
 @SuppressWarnings("serial")
 public class FindCornersPopParalell extends RecursiveTask<PreprocessResult> {
 	private static final int CUTOFF_VALUE = 1000;
-	private CensusData cData;
+	private CensusColumns cData;
 	private int start;
 	private int end;
 
-	// Pre: CensusData passed is not null, and has at least 1 element
+	// Pre: CensusColumns passed is not null, and has at least 1 element
 	// Post: Initializes a new PreprocessTwo instance.
-	public FindCornersPopParalell(CensusData data, int start, int end) {
+	public FindCornersPopParalell(CensusColumns data, int start, int end) {
 		this.cData = data;
 		this.start = start;
 		this.end = end;
@@ -32,18 +33,7 @@ public class FindCornersPopParalell extends RecursiveTask<PreprocessResult> {
 	protected PreprocessResult compute() {
 		PreprocessResult res = new PreprocessResult();
 		if(end - start <= CUTOFF_VALUE) {
-			res.highLat = cData.data[start].latitude;
-			res.lowLat = cData.data[start].latitude;
-			res.highLon = cData.data[start].longitude;
-			res.lowLon = cData.data[start].longitude;
-			for(int i = start; i < end; i++) {
-				CensusGroup group = cData.data[i];
-				res.totPop += group.population;
-				res.highLon = Math.max(res.highLon, group.longitude);
-				res.lowLon = Math.min(res.lowLon, group.longitude);
-				res.highLat = Math.max(res.highLat, group.latitude);
-				res.lowLat = Math.min(res.lowLat, group.latitude);
-			}
+			res = CoordinateKernels.INSTANCE.findCornersPop(cData, start, end);
 		} else {
 			FindCornersPopParalell right = new FindCornersPopParalell(cData, (start + end) / 2, end);
 			FindCornersPopParalell left = new FindCornersPopParalell(cData, start, (start + end) / 2);
@@ -14,27 +14,30 @@ public class GetPopulationParallel extends RecursiveTask<Integer> {
 
 	private static final long serialVersionUID = 1969575246704693659L;
 	private static final int SEQUENTIAL_CUTOFF = 1000;
-	private CensusData cenData;
-	private int rows, columns;
-	private PreprocessResult preData;
-	private int w, s, e, n, start, end;
+	private CensusColumns cenData;
+	// {minLon, minLat, maxLon, maxLat}, with real latitudes, shared by every task of a query
+	private float[] bounds;
+	private int start, end;
 
-	// Pre: CensusData passed in has at least one element in it [TODO FIND OUT IF THIS IS A VALID ASSUMPTION]
+	// Pre: CensusColumns passed in has at least one element in it [TODO FIND OUT IF THIS IS A VALID ASSUMPTION]
 	// grid coordinates within the grid, can be equal to maximum row/column number, otherwise throws
 	// IllegalArgumentException()
 	// Post: Constructs a new GetPopulationTwo instance with the specified parameters
-	public GetPopulationParallel(CensusData cenData, int rows, int columns, PreprocessResult preData, int w, int s, int e, int n, int start, int end) {
+	public GetPopulationParallel(CensusColumns cenData, int rows, int columns, PreprocessResult preData, int w, int s, int e, int n, int start, int end) {
 		if(w < 0 || s < 0 || n > rows + 1 || e > columns + 1) {
 			throw new IllegalArgumentException();
 		}
 		this.cenData = cenData;
-		this.rows = rows;
-		this.columns = columns;
-		this.preData = preData;
-		this.w = w;
-		this.s = s;
-		this.e = e;
-		this.n = n;
+		// The edges are worked out once here rather than in every leaf, since turning the
+		// projected latitudes of the grid into real ones takes a search.
+		this.bounds = PopulationQuery.queryBounds(preData, rows, columns, w, s, e, n);
+		this.start = start;
+		this.end = end;
+	}
+
+	private GetPopulationParallel(CensusColumns cenData, float[] bounds, int start, int end) {
+		this.cenData = cenData;
+		this.bounds = bounds;
 		this.start = start;
 		this.end = end;
 	}
@@ -46,32 +49,14 @@ public class GetPopulationParallel extends RecursiveTask<Integer> {
 	// edges that border the north and east edges of the map.
 	@Override
 	protected Integer compute() {
-		if(end - start <= SEQUENTIAL_CUTOFF) {
-			float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
-			float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
-			float minLat = preData.lowLat + latGridSize * (s - 1);
-			float maxLat = preData.lowLat + latGridSize * n;
-			float minLon = preData.lowLon + lonGridSize * (w - 1);
-			float maxLon = preData.lowLon + lonGridSize * e;
-			if(maxLat == preData.highLat) maxLat++;
-			if(maxLon == preData.highLon) maxLon++;
-			// This increment is so that the points on the northernmost and easternmost edges will
-			// be included in the places considered.
-			int population = 0;
-			for(int i = start; i < end; i++) {
-				CensusGroup censusBlock = cenData.data[i];
-				boolean isContained = censusBlock.longitude >= minLon &&
-						censusBlock.latitude >= minLat &&
-						censusBlock.longitude < maxLon &&
-						censusBlock.latitude < maxLat;
-				if(isContained) {
-					population += censusBlock.population;
-				}
-			}
-			return population;
+		// with zone maps, a leaf is whole blocks, so that it can take their totals
+		int cutoff = (cenData.zones == null) ? SEQUENTIAL_CUTOFF : Math.max(SEQUENTIAL_CUTOFF, cenData.zones.getBlockSize());
+		if(end - start <= cutoff) {
+			return cenData.sumInRange(start, end, bounds[0], bounds[1], bounds[2], bounds[3]);
 		} else {
-			GetPopulationParallel right = new GetPopulationParallel(cenData, rows, columns, preData, w, s, e, n, (start + end) / 2, end);
-			GetPopulationParallel left = new GetPopulationParallel(cenData, rows, columns, preData, w, s, e, n, start, (start + end) / 2);
+			int mid = (cenData.zones == null) ? (start + end) / 2 : cenData.zones.middle(start, end);
+			GetPopulationParallel right = new GetPopulationParallel(cenData, bounds, mid, end);
+			GetPopulationParallel left = new GetPopulationParallel(cenData, bounds, start, mid);
 			right.fork();
 			int leftRes = left.compute();
 			int rightRes = right.join();
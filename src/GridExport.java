@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Writes the population and percentage of the total population of every square of a grid
+ * of sums to a file, for tools that want the whole grid rather than one query per square.
+ * The population of every square is read off the sums the way a one-square query reads it,
+ * and the percentage is rounded the way the queries round it, so every line agrees with
+ * the console loop. Squares go row by row from the south, west to east within a row, which
+ * is the order the grid keeps them in.
+ *
+ * There are two formats:
+ *   csv     a header line, then "column,row,population,percent" for every square, counting
+ *           from 1 like the queries, with the percentage to two decimal places
+ *   binary  little-endian: the columns and rows as ints and the total population as a long,
+ *           then the population of every square as an int and its percentage as a float
+ *
+ * Squares are formatted in parallel slices. A csv slice is formatted into a buffer of its
+ * own and the slices of a chunk are written in order, since a line's length is only known
+ * once it is formatted; every binary square takes 8 bytes, so every binary slice is written
+ * straight to its place in the file.
+ *
+ * Enabled with the system property pq.export=file, with pq.exportformat=csv (the default)
+ * or pq.exportformat=binary.
+ */
+public class GridExport {
+	public static final String FILE = System.getProperty("pq.export");
+	public static final boolean BINARY = isBinary(System.getProperty("pq.exportformat", "csv"));
+	private static final int SLICE_SIZE = 1 << 12; // squares formatted by one task
+	private static final int CHUNK_SLICES = 64; // csv slices formatted before writing them
+	private static final int MAX_CSV_LINE = 48; // two ints, a population, a percentage, separators
+	private static final int BINARY_HEADER = 16;
+	private static final int BINARY_SQUARE = 8;
+	private static final byte[] CSV_HEADER = "column,row,population,percent\n".getBytes();
+
+	// Pre: sums is a grid of sums, as LongGrid.toSums leaves it, totPop is the population of
+	//      the whole grid
+	// Post: writes every square of sums to filename, which is replaced, as csv or binary
+	public static void write(LongGrid sums, int totPop, String filename, boolean binary,
+			ForkJoinPool fjPool) throws IOException {
+		try (FileChannel out = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			if (binary) {
+				writeBinary(sums, totPop, out, fjPool);
+			} else {
+				writeCsv(sums, totPop, out, fjPool);
+			}
+		}
+	}
+
+	private static boolean isBinary(String format) {
+		if (!format.equals("csv") && !format.equals("binary")) {
+			throw new IllegalArgumentException("pq.exportformat must be csv or binary");
+		}
+		return format.equals("binary");
+	}
+
+	private static void writeCsv(LongGrid sums, int totPop, FileChannel out, ForkJoinPool fjPool)
+			throws IOException {
+		writeFully(out, ByteBuffer.wrap(CSV_HEADER), -1);
+		long squares = (long) sums.getColumns() * sums.getRows();
+		int slices = (int) Math.min(CHUNK_SLICES, (squares + SLICE_SIZE - 1) / SLICE_SIZE);
+		// the buffers are kept from one chunk to the next
+		byte[][] text = new byte[slices][SLICE_SIZE * MAX_CSV_LINE];
+		int[] lengths = new int[slices];
+		for (long chunk = 0; chunk < squares; chunk += (long) CHUNK_SLICES * SLICE_SIZE) {
+			long end = Math.min(squares, chunk + (long) CHUNK_SLICES * SLICE_SIZE);
+			int used = (int) ((end - chunk + SLICE_SIZE - 1) / SLICE_SIZE);
+			fjPool.invoke(new FormatCsv(sums, totPop, chunk, end, text, lengths, 0, used));
+			for (int i = 0; i < used; i++) {
+				writeFully(out, ByteBuffer.wrap(text[i], 0, lengths[i]), -1);
+			}
+		}
+	}
+
+	private static void writeBinary(LongGrid sums, int totPop, FileChannel out, ForkJoinPool fjPool)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(sums.getColumns()).putInt(sums.getRows()).putLong(totPop).flip();
+		writeFully(out, header, 0);
+		long squares = (long) sums.getColumns() * sums.getRows();
+		WriteBinary task = new WriteBinary(sums, totPop, out, 0, squares);
+		fjPool.invoke(task);
+		if (task.failure != null) {
+			throw task.failure;
+		}
+	}
+
+	// Pre: the grid holds sums, 0 <= x < columns, 0 <= y < rows
+	// Post: returns the population of square (x, y), counting from 0
+	private static long square(LongGrid sums, int x, int y) {
+		long population = sums.get(x, y);
+		if (x > 0) {
+			population -= sums.get(x - 1, y);
+		}
+		if (y > 0) {
+			population -= sums.get(x, y - 1);
+		}
+		if (x > 0 && y > 0) {
+			population += sums.get(x - 1, y - 1);
+		}
+		return population;
+	}
+
+	// Post: returns the percentage of totPop that population is in hundredths of a percent,
+	//       rounded the way PopulationQuery rounds the answers to queries
+	private static int hundredths(long population, int totPop) {
+		return Math.round(100 * (float) (100.0 * population / totPop));
+	}
+
+	// Post: writes every remaining byte of buffer to out, at position if it is not negative
+	//       and at the channel's own position otherwise
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (position < 0) {
+				out.write(buffer);
+			} else {
+				position += out.write(buffer, position);
+			}
+		}
+	}
+
+	/*
+	 * Formats the csv lines of slices lo (inclusive) to hi (exclusive) of the squares from
+	 * start (inclusive) to end (exclusive), slice i into text[i] with its length in lengths[i].
+	 */
+	@SuppressWarnings("serial")
+	private static class FormatCsv extends RecursiveAction {
+		private LongGrid sums;
+		private int totPop;
+		private long start, end;
+		private byte[][] text;
+		private int[] lengths;
+		private int lo, hi;
+
+		public FormatCsv(LongGrid sums, int totPop, long start, long end, byte[][] text, int[] lengths,
+				int lo, int hi) {
+			this.sums = sums;
+			this.totPop = totPop;
+			this.start = start;
+			this.end = end;
+			this.text = text;
+			this.lengths = lengths;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				int columns = sums.getColumns();
+				byte[] slice = text[lo];
+				int pos = 0;
+				long last = Math.min(end, start + (long) hi * SLICE_SIZE);
+				for (long i = start + (long) lo * SLICE_SIZE; i < last; i++) {
+					int x = (int) (i % columns);
+					int y = (int) (i / columns);
+					long population = square(sums, x, y);
+					int percent = hundredths(population, totPop);
+					pos = BatchQueryRunner.writeInt(x + 1, slice, pos);
+					slice[pos++] = ',';
+					pos = BatchQueryRunner.writeInt(y + 1, slice, pos);
+					slice[pos++] = ',';
+					pos = BatchQueryRunner.writeInt((int) population, slice, pos);
+					slice[pos++] = ',';
+					pos = BatchQueryRunner.writeInt(percent / 100, slice, pos);
+					slice[pos++] = '.';
+					slice[pos++] = (byte) ('0' + percent % 100 / 10);
+					slice[pos++] = (byte) ('0' + percent % 10);
+					slice[pos++] = '\n';
+				}
+				lengths[lo] = pos;
+			} else {
+				int mid = (lo + hi) / 2;
+				FormatCsv left = new FormatCsv(sums, totPop, start, end, text, lengths, lo, mid);
+				FormatCsv right = new FormatCsv(sums, totPop, start, end, text, lengths, mid, hi);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Writes the binary squares from start (inclusive) to end (exclusive) to their place in
+	 * the file. The first failure to write is kept in failure rather than thrown, since
+	 * compute cannot throw an IOException.
+	 */
+	@SuppressWarnings("serial")
+	private static class WriteBinary extends RecursiveAction {
+		private LongGrid sums;
+		private int totPop;
+		private FileChannel out;
+		private long start, end;
+		public IOException failure;
+
+		public WriteBinary(LongGrid sums, int totPop, FileChannel out, long start, long end) {
+			this.sums = sums;
+			this.totPop = totPop;
+			this.out = out;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SLICE_SIZE) {
+				int columns = sums.getColumns();
+				ByteBuffer buffer = ByteBuffer.allocate((int) (end - start) * BINARY_SQUARE)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				for (long i = start; i < end; i++) {
+					long population = square(sums, (int) (i % columns), (int) (i / columns));
+					buffer.putInt((int) population);
+					buffer.putFloat((float) (hundredths(population, totPop) / 100.0));
+				}
+				buffer.flip();
+				try {
+					writeFully(out, buffer, BINARY_HEADER + start * BINARY_SQUARE);
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+			} else {
+				long mid = (start + end) / 2;
+				WriteBinary left = new WriteBinary(sums, totPop, out, start, mid);
+				WriteBinary right = new WriteBinary(sums, totPop, out, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+				failure = (left.failure != null) ? left.failure : right.failure;
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * A pyramid of summed population grids built once from a fine base grid. Each level has half
+ * the columns and rows of the level below it, and halving stops once a dimension is odd. Any
+ * other grid size can then be served without touching the CensusData again: the requested
+ * grid lines are placed on the nearest grid lines of a level, so answers are exact whenever
+ * the requested columns and rows divide a level's columns and rows, and are otherwise off by
+ * at most the population of half a base cell along each edge. PopulationQuery.regrid only
+ * serves the exact sizes from the pyramid and bins the records again for the others.
+ */
+
+public class GridPyramid {
+	public static final int DEFAULT_BASE_COLUMNS = 1440;
+	public static final int DEFAULT_BASE_ROWS = 720;
+	// levels[0] is the base grid, every grid holds the sums used by getPopulationFromGrid
+	private int[][][] levels;
+
+	// Pre: preData describes cenData, which has at least one element, base dimensions positive
+	// Post: bins cenData into the base grid, projecting it first if need be, then builds and
+	//       sums every coarser level in parallel
+	public GridPyramid(PreprocessResult preData, CensusColumns cenData, int baseColumns, int baseRows,
+			ForkJoinPool fjPool) {
+		cenData.project(fjPool);
+		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / baseRows);
+		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / baseColumns);
+		GridInfo ginfo = new GridInfo(baseColumns, baseRows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+		LongGrid baseGrid = new LongGrid(baseColumns, baseRows);
+		PopulationQuery.buildGridParallel(cenData, ginfo, baseGrid, fjPool);
+		int[][] base = baseGrid.toArray();
+
+		int levelCount = 1;
+		for (int c = baseColumns, r = baseRows; c % 2 == 0 && r % 2 == 0; c /= 2, r /= 2) {
+			levelCount++;
+		}
+		levels = new int[levelCount][][];
+		levels[0] = base;
+		for (int l = 1; l < levelCount; l++) {
+			int[][] fine = levels[l - 1];
+			levels[l] = new int[fine.length / 2][fine[0].length / 2];
+			fjPool.invoke(new HalveGrid(fine, levels[l], 0, levels[l].length));
+		}
+		// the levels are independent once halving is done, so they are summed concurrently
+		SumLevel[] sums = new SumLevel[levelCount];
+		for (int l = 0; l < levelCount; l++) {
+			sums[l] = new SumLevel(levels[l]);
+		}
+		fjPool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(sums);
+			}
+		});
+	}
+
+	// Post: returns the number of levels in the pyramid
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	// Post: returns the summed grid of the given level, 0 being the finest
+	public int[][] getLevel(int level) {
+		return levels[level];
+	}
+
+	// Post: returns the level used to serve a grid of the given size: the coarsest level whose
+	//       grid lines include every requested grid line, or the base level if there is none
+	public int levelFor(int columns, int rows) {
+		for (int l = levels.length - 1; l >= 0; l--) {
+			if (levels[l].length % columns == 0 && levels[l][0].length % rows == 0) {
+				return l;
+			}
+		}
+		return 0;
+	}
+
+	// Post: returns true if a grid of the given size gets exact answers from the pyramid
+	public boolean isExact(int columns, int rows) {
+		int[][] level = levels[levelFor(columns, rows)];
+		return level.length % columns == 0 && level[0].length % rows == 0;
+	}
+
+	// Pre: columns and rows positive
+	// Post: returns a summed grid of the given size like PopulationQuery.populationGrid, read
+	//       off the level chosen by levelFor
+	public LongGrid resample(int columns, int rows, ForkJoinPool fjPool) {
+		int[][] level = levels[levelFor(columns, rows)];
+		int[] xEdges = edges(columns, level.length);
+		int[] yEdges = edges(rows, level[0].length);
+		LongGrid grid = new LongGrid(columns, rows);
+		fjPool.invoke(new ResampleGrid(level, grid, xEdges, yEdges, 0, columns));
+		return grid;
+	}
+
+	// Post: returns, for each requested grid line k from 1 to count, the number of level cells
+	//       that lie before it, rounding to the nearest level grid line
+	private static int[] edges(int count, int levelCount) {
+		int[] edges = new int[count];
+		for (int k = 1; k <= count; k++) {
+			edges[k - 1] = (int) Math.round((double) k * levelCount / count);
+		}
+		return edges;
+	}
+
+	/*
+	 * Sums each 2x2 block of cells of the fine grid into one cell of the coarse grid, splitting
+	 * on coarse columns.
+	 */
+	@SuppressWarnings("serial")
+	private static class HalveGrid extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 16;
+		private int[][] fine;
+		private int[][] coarse;
+		private int minX, maxX;
+
+		public HalveGrid(int[][] fine, int[][] coarse, int minX, int maxX) {
+			this.fine = fine;
+			this.coarse = coarse;
+			this.minX = minX;
+			this.maxX = maxX;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxX - minX <= SEQUENTIAL_CUTOFF) {
+				for (int i = minX; i < maxX; i++) {
+					int[] left = fine[2 * i];
+					int[] right = fine[2 * i + 1];
+					for (int j = 0; j < coarse[i].length; j++) {
+						coarse[i][j] = left[2 * j] + left[2 * j + 1] + right[2 * j] + right[2 * j + 1];
+					}
+				}
+			} else {
+				int midX = (minX + maxX) / 2;
+				HalveGrid left = new HalveGrid(fine, coarse, minX, midX);
+				HalveGrid right = new HalveGrid(fine, coarse, midX, maxX);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Turns one level into the grid of sums.
+	 */
+	@SuppressWarnings("serial")
+	private static class SumLevel extends RecursiveAction {
+		private int[][] level;
+
+		public SumLevel(int[][] level) {
+			this.level = level;
+		}
+
+		@Override
+		protected void compute() {
+			PopulationQuery.updateGridToSum(level);
+		}
+	}
+
+	/*
+	 * Fills columns minX (inclusive) to maxX (exclusive) of the requested summed grid by
+	 * reading the level's sums at the matching grid lines.
+	 */
+	@SuppressWarnings("serial")
+	private static class ResampleGrid extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 64;
+		private int[][] level;
+		private LongGrid grid;
+		private int[] xEdges, yEdges;
+		private int minX, maxX;
+
+		public ResampleGrid(int[][] level, LongGrid grid, int[] xEdges, int[] yEdges, int minX, int maxX) {
+			this.level = level;
+			this.grid = grid;
+			this.xEdges = xEdges;
+			this.yEdges = yEdges;
+			this.minX = minX;
+			this.maxX = maxX;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxX - minX <= SEQUENTIAL_CUTOFF) {
+				for (int i = minX; i < maxX; i++) {
+					for (int j = 0; j < yEdges.length; j++) {
+						// a grid line rounded down to the map edge has nothing before it
+						boolean isEmpty = xEdges[i] == 0 || yEdges[j] == 0;
+						grid.set(i, j, isEmpty ? 0 : level[xEdges[i] - 1][yEdges[j] - 1]);
+					}
+				}
+			} else {
+				int midX = (minX + maxX) / 2;
+				ResampleGrid left = new ResampleGrid(level, grid, xEdges, yEdges, minX, midX);
+				ResampleGrid right = new ResampleGrid(level, grid, xEdges, yEdges, midX, maxX);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingWorker;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Runs preprocessing and queries for the GUI off the event dispatch thread so the map stays
+ * responsive. PopulationQuery keeps its data in static fields, so every task runs on one
+ * background thread, in the order it was asked for. Asking for a new preprocess cancels the
+ * one in progress, and asking to run a query while another of the same kind, live or not,
+ * is still waiting to start just moves the waiting query to the new rectangle. All methods
+ * are called on the event dispatch thread.
+ */
+public class GuiTaskQueue {
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "PopulationQuery worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private static PreprocessTask currentPreprocess;
+	private static RunTask pendingRun;
+
+	// Post: preprocesses the file for the given version and grid size in the background,
+	//       cancelling any preprocess that is still running
+	public static void preprocess(String filename, int columns, int rows, int version) {
+		submitPreprocess(filename, columns, rows, version, false);
+	}
+
+	// Post: switches to the given grid size in the background. Only a full preprocess if the
+	//       running version has not been preprocessed yet or a preprocess is still under way.
+	public static void regrid(String filename, int columns, int rows, int version) {
+		boolean regridOnly = currentPreprocess == null || currentPreprocess.regridOnly;
+		submitPreprocess(filename, columns, rows, version, regridOnly);
+	}
+
+	// Post: answers the query in the background and shows it with InteractionPane.displayCensusData.
+	//       A live query waiting to start is left alone, since it can be abandoned.
+	public static void run(int w, int s, int e, int n) {
+		if(pendingRun == null || pendingRun.live || !pendingRun.retarget(w, s, e, n)) {
+			pendingRun = new RunTask(w, s, e, n, false);
+			executor.execute(pendingRun);
+		}
+	}
+
+	// Post: answers the query in the background for the live readout while a selection is
+	//       dragged. Rectangles that are not valid yet are skipped, and a scan [version 1, 2]
+	//       still running for an older rectangle is abandoned. The scan versions answer from
+	//       the sample alone if PopulationQuery.isApproximateOnly(). A query from run is never
+	//       moved or abandoned, the live one is queued behind it.
+	public static void runLive(int w, int s, int e, int n) {
+		if(pendingRun != null && pendingRun.live && pendingRun.retarget(w, s, e, n)) {
+			return;
+		}
+		if(pendingRun != null && pendingRun.live) {
+			pendingRun.abandon();
+		}
+		pendingRun = new RunTask(w, s, e, n, true);
+		executor.execute(pendingRun);
+	}
+
+	// Post: works out the population of every grid square in the background and passes it to
+	//       USMaps.showCellPopulations
+	public static void computeCellPopulations() {
+		executor.execute(new HeatmapTask());
+	}
+
+	private static void submitPreprocess(String filename, int columns, int rows, int version,
+			boolean regridOnly) {
+		if(currentPreprocess != null) {
+			currentPreprocess.stop();
+		}
+		// a query that has not started yet was made against the old grid
+		if(pendingRun != null) {
+			pendingRun.cancel(false);
+			pendingRun = null;
+		}
+		currentPreprocess = new PreprocessTask(filename, columns, rows, version, regridOnly);
+		currentPreprocess.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				// cancelled tasks can still report progress for a moment
+				if("progress".equals(evt.getPropertyName()) && evt.getSource() == currentPreprocess) {
+					InteractionPane.displayProgress((Integer) evt.getNewValue());
+				}
+			}
+		});
+		InteractionPane.displayProgress(0);
+		executor.execute(currentPreprocess);
+	}
+
+	// Post: prints whatever went wrong in a finished task, ignoring cancellation
+	private static void report(SwingWorker<?, ?> task) {
+		try {
+			task.get();
+		} catch(CancellationException ce) {
+			// replaced by a newer task
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException ee) {
+			if(!(ee.getCause() instanceof CancellationException)) {
+				ee.getCause().printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Preprocesses the file, or only switches grid size if the data is already preprocessed,
+	 * reporting progress through a PreprocessMonitor.
+	 */
+	private static class PreprocessTask extends SwingWorker<Void, Void> {
+		private String filename;
+		private int columns, rows, version;
+		private boolean regridOnly;
+		private PreprocessMonitor monitor;
+
+		public PreprocessTask(String filename, int columns, int rows, int version, boolean regridOnly) {
+			this.filename = filename;
+			this.columns = columns;
+			this.rows = rows;
+			this.version = version;
+			this.regridOnly = regridOnly;
+			monitor = new PreprocessMonitor() {
+				protected void progressed(int percent) {
+					setProgress(percent);
+				}
+			};
+		}
+
+		// Post: cancels the task whether or not it has started
+		public void stop() {
+			monitor.cancel();
+			cancel(false);
+		}
+
+		@Override
+		protected Void doInBackground() {
+			monitor.checkCancelled();
+			PopulationQuery.monitor = monitor;
+			try {
+				if(regridOnly && PopulationQuery.isPreprocessed(version)) {
+					PopulationQuery.regrid(columns, rows);
+					monitor.finish();
+				} else {
+					PopulationQuery.preprocess(filename, columns, rows, version);
+					PopulationQuery.buildPyramid();
+				}
+			} finally {
+				PopulationQuery.monitor = null;
+			}
+			return null;
+		}
+
+		@Override
+		protected void done() {
+			if(currentPreprocess == this) {
+				currentPreprocess = null;
+			}
+			report(this);
+			if(!isCancelled()) {
+				USMaps.refreshHeatmap();
+			}
+		}
+	}
+
+	/*
+	 * Finds the population of every square of the current grid for the heatmap.
+	 */
+	private static class HeatmapTask extends SwingWorker<int[][], Void> {
+		@Override
+		protected int[][] doInBackground() {
+			if(!PopulationQuery.isPreprocessed(PopulationQuery.instanceVersion)) {
+				return null;
+			}
+			return PopulationQuery.getCellPopulations();
+		}
+
+		@Override
+		protected void done() {
+			try {
+				int[][] cells = get();
+				if(cells != null) {
+					USMaps.showCellPopulations(cells);
+				}
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch(ExecutionException ee) {
+				ee.getCause().printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Answers one query. Until it starts, it can be moved to a newer rectangle so that
+	 * repeated requests to run collapse into one. Live queries against the scan versions
+	 * scan incrementally so they can be abandoned part way.
+	 */
+	private static class RunTask extends SwingWorker<Pair<Integer, Float>, Void> {
+		private int w, s, e, n;
+		private boolean live;
+		private boolean started;
+		private boolean approximate; // answered from the sample
+		private AtomicBoolean abandoned = new AtomicBoolean();
+
+		public RunTask(int w, int s, int e, int n, boolean live) {
+			this.w = w;
+			this.s = s;
+			this.e = e;
+			this.n = n;
+			this.live = live;
+		}
+
+		// Post: stops a running scan at its next block, and the answer is never shown
+		public void abandon() {
+			abandoned.set(true);
+		}
+
+		// Post: moves the query to the given rectangle and returns true, or returns false
+		//       if the query has already started
+		public synchronized boolean retarget(int w, int s, int e, int n) {
+			if(started || isCancelled()) {
+				return false;
+			}
+			this.w = w;
+			this.s = s;
+			this.e = e;
+			this.n = n;
+			return true;
+		}
+
+		@Override
+		protected Pair<Integer, Float> doInBackground() {
+			int[] coords;
+			synchronized(this) {
+				started = true;
+				coords = new int[] {w, s, e, n};
+			}
+			if(live) {
+				if(!PopulationQuery.isPreprocessed(PopulationQuery.instanceVersion) ||
+						!PopulationQuery.isValidQuery(coords[0], coords[1], coords[2], coords[3])) {
+					return null;
+				}
+				if(PopulationQuery.isApproximateOnly()) {
+					PopulationSample.Estimate estimate = PopulationQuery.approximateInteraction(coords[0],
+							coords[1], coords[2], coords[3]);
+					approximate = true;
+					return new Pair<Integer, Float>(estimate.population, estimate.percent);
+				}
+				if(PopulationQuery.instanceVersion < 3) {
+					return PopulationQuery.scanInteraction(coords[0], coords[1], coords[2], coords[3], abandoned);
+				}
+			}
+			return PopulationQuery.singleInteraction(coords[0], coords[1], coords[2], coords[3]);
+		}
+
+		@Override
+		protected void done() {
+			if(pendingRun == this) {
+				pendingRun = null;
+			}
+			if(!isCancelled()) {
+				try {
+					Pair<Integer, Float> result = get();
+					if(result != null && !abandoned.get()) {
+						InteractionPane.displayCensusData(result.getElementA(), result.getElementB(), approximate);
+					}
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				} catch(ExecutionException ee) {
+					ee.getCause().printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Draws the population of each grid square as a translucent heatmap. Colors follow a log
+ * scale from blue for the sparsest squares to red for the densest, since a handful of city
+ * squares would otherwise wash everything else out. Squares nobody lives in stay clear.
+ * The colors of the squares and then the pixels of the image are both filled in parallel.
+ */
+public class HeatmapRenderer {
+	private static final int ALPHA = 150;
+	private static final int PALETTE_SIZE = 256;
+	private static final int[] PALETTE = buildPalette();
+
+	// Pre: cells is at least 1x1, cellWidth and cellHeight positive
+	// Post: fills image with the heatmap of cells. Square (x, y) is drawn at pixel
+	//       (startX + x * cellWidth, startY + (rows - 1 - y) * cellHeight), so row 0 is at the bottom.
+	public static void render(int[][] cells, BufferedImage image, double cellWidth, double cellHeight,
+			int startX, int startY, ForkJoinPool fjPool) {
+		int columns = cells.length;
+		int rows = cells[0].length;
+		int max = 0;
+		for (int x = 0; x < columns; x++) {
+			for (int y = 0; y < rows; y++) {
+				max = Math.max(max, cells[x][y]);
+			}
+		}
+		int[] colors = new int[columns * rows];
+		fjPool.invoke(new ColorCells(cells, colors, Math.log1p(max), 0, columns));
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		// the square under each column and row of pixels, -1 when off the grid
+		int[] pixelColumns = new int[width];
+		for (int px = 0; px < width; px++) {
+			int x = (int) Math.floor((px - startX) / cellWidth);
+			pixelColumns[px] = (x >= 0 && x < columns) ? x : -1;
+		}
+		int[] pixelRows = new int[height];
+		for (int py = 0; py < height; py++) {
+			int y = (int) Math.floor((py - startY) / cellHeight);
+			pixelRows[py] = (y >= 0 && y < rows) ? rows - 1 - y : -1;
+		}
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		fjPool.invoke(new FillPixels(colors, rows, pixelColumns, pixelRows, pixels, 0, height));
+	}
+
+	// Post: returns ARGB colors going blue, cyan, green, yellow, red
+	private static int[] buildPalette() {
+		Color[] stops = {Color.BLUE, Color.CYAN, Color.GREEN, Color.YELLOW, Color.RED};
+		int[] palette = new int[PALETTE_SIZE];
+		for (int i = 0; i < PALETTE_SIZE; i++) {
+			double t = (double) i / (PALETTE_SIZE - 1) * (stops.length - 1);
+			int stop = Math.min((int) t, stops.length - 2);
+			double f = t - stop;
+			Color a = stops[stop];
+			Color b = stops[stop + 1];
+			int red = (int) Math.round(a.getRed() + f * (b.getRed() - a.getRed()));
+			int green = (int) Math.round(a.getGreen() + f * (b.getGreen() - a.getGreen()));
+			int blue = (int) Math.round(a.getBlue() + f * (b.getBlue() - a.getBlue()));
+			palette[i] = (ALPHA << 24) | (red << 16) | (green << 8) | blue;
+		}
+		return palette;
+	}
+
+	/*
+	 * Picks the color of columns minX (inclusive) to maxX (exclusive) of the grid.
+	 */
+	@SuppressWarnings("serial")
+	private static class ColorCells extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 5000;
+		private int[][] cells;
+		private int[] colors;
+		private double logMax;
+		private int minX, maxX;
+
+		public ColorCells(int[][] cells, int[] colors, double logMax, int minX, int maxX) {
+			this.cells = cells;
+			this.colors = colors;
+			this.logMax = logMax;
+			this.minX = minX;
+			this.maxX = maxX;
+		}
+
+		@Override
+		protected void compute() {
+			int rows = cells[0].length;
+			if (maxX - minX <= 1 || (maxX - minX) * rows <= SEQUENTIAL_CUTOFF) {
+				for (int x = minX; x < maxX; x++) {
+					for (int y = 0; y < rows; y++) {
+						int population = cells[x][y];
+						int color = 0; // transparent
+						if (population > 0) {
+							int shade = (int) ((PALETTE_SIZE - 1) * Math.log1p(population) / logMax);
+							color = PALETTE[shade];
+						}
+						colors[x * rows + y] = color;
+					}
+				}
+			} else {
+				int midX = (minX + maxX) / 2;
+				ColorCells left = new ColorCells(cells, colors, logMax, minX, midX);
+				ColorCells right = new ColorCells(cells, colors, logMax, midX, maxX);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Fills the pixels of rows minY (inclusive) to maxY (exclusive) of the image.
+	 */
+	@SuppressWarnings("serial")
+	private static class FillPixels extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 32; // rows of pixels in a tile
+		private int[] colors;
+		private int rows;
+		private int[] pixelColumns, pixelRows;
+		private int[] pixels;
+		private int minY, maxY;
+
+		public FillPixels(int[] colors, int rows, int[] pixelColumns, int[] pixelRows, int[] pixels,
+				int minY, int maxY) {
+			this.colors = colors;
+			this.rows = rows;
+			this.pixelColumns = pixelColumns;
+			this.pixelRows = pixelRows;
+			this.pixels = pixels;
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxY - minY <= SEQUENTIAL_CUTOFF) {
+				int width = pixelColumns.length;
+				for (int py = minY; py < maxY; py++) {
+					int y = pixelRows[py];
+					for (int px = 0; px < width; px++) {
+						int x = pixelColumns[px];
+						pixels[py * width + px] = (x < 0 || y < 0) ? 0 : colors[x * rows + y];
+					}
+				}
+			} else {
+				int midY = (minY + maxY) / 2;
+				FillPixels left = new FillPixels(colors, rows, pixelColumns, pixelRows, pixels, minY, midY);
+				FillPixels right = new FillPixels(colors, rows, pixelColumns, pixelRows, pixels, midY, maxY);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
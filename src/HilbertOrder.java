@@ -0,0 +1,267 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Puts the records in order along a Hilbert curve over the map instead of the order of the
+ * file, so that records next to each other in the arrays are next to each other on the map.
+ * The curve runs through a 2^BITS by 2^BITS grid over the borders, about 150 meters a
+ * square across the country, and never jumps between squares that do not touch, which a
+ * Z-order curve does at every level. The records are put in order of the square of a
+ * coarser curve they lie in, with about one square per record, by a parallel counting
+ * sort, and in file order within a square. A square of the coarser curve is the first bits
+ * of a place on the fine one, so the order is the same as the fine curve's but for records
+ * of one small square. Only the order itself, one int per record, and a count per square
+ * are held, so CompressedColumns can pack straight through the order without a reordered
+ * copy of the records.
+ *
+ * The reordered records get ZoneMaps, which let the scans of versions 1 and 2 skip or take
+ * whole the blocks their rectangle misses or covers. Binning also writes to grid squares
+ * near the last one it wrote, which stays in the cache. Every answer is the same as in the
+ * order of the file, since only the order of int additions and of min and max changes.
+ *
+ * Enabled with the system property pq.hilbert=records per zone map block.
+ */
+public class HilbertOrder {
+	public static final int BLOCK_SIZE = Integer.getInteger("pq.hilbert", 0);
+	public static final int BITS = 15; // per axis, so a place on the curve fits in 30 bits
+	private static final int SEQUENTIAL_CUTOFF = 1 << 14;
+	private static final int CELL_CUTOFF = 1 << 12; // squares whose records one task sorts
+
+	// Pre: data has at least one record, corners are its borders with real latitudes, blockSize
+	//      positive
+	// Post: returns the records of data in Hilbert order, with zone maps of blockSize records,
+	//       leaving data as it was
+	public static CensusColumns reorder(CensusColumns data, PreprocessResult corners, int blockSize,
+			ForkJoinPool fjPool) {
+		int[] order = order(data, corners, fjPool);
+		PopulationQuery.checkCancelled();
+		CensusColumns ordered = new CensusColumns(new int[data.size], new float[data.size],
+				new float[data.size], data.size);
+		fjPool.invoke(new Gather(data, order, ordered, 0, data.size));
+		ordered.zones = new ZoneMaps(ordered, blockSize, fjPool);
+		return ordered;
+	}
+
+	// Pre: data has at least one record, corners are its borders with real latitudes
+	// Post: returns the indexes of the records of data in Hilbert order, leaving data as it was
+	public static int[] order(CensusColumns data, PreprocessResult corners, ForkJoinPool fjPool) {
+		// squares per axis of the coarser curve: 2^level, about one square per record
+		int level = Math.max(1, Math.min(BITS, (31 - Integer.numberOfLeadingZeros(data.size)) / 2));
+		int shift = 2 * (BITS - level);
+		int cells = 1 << (2 * level);
+		AtomicIntegerArray next = new AtomicIntegerArray(cells);
+		fjPool.invoke(new CountCells(data, corners, shift, next, 0, data.size));
+		// counts become the place of the first record of every square
+		int start = 0;
+		for (int c = 0; c < cells; c++) {
+			int count = next.get(c);
+			next.set(c, start);
+			start += count;
+		}
+		int[] order = new int[data.size];
+		fjPool.invoke(new PlaceRecords(data, corners, shift, next, order, 0, data.size));
+		// every square now ends where the next one starts; within one the records are put
+		// back in file order, whichever task placed them
+		fjPool.invoke(new SortCells(next, order, 0, cells));
+		return order;
+	}
+
+	// Pre: 0 <= x, y < 2^BITS
+	// Post: returns the distance along the Hilbert curve of the square in column x and row y
+	public static long distance(int x, int y) {
+		int n = 1 << BITS;
+		long d = 0;
+		for (int s = n / 2; s > 0; s /= 2) {
+			int rx = ((x & s) > 0) ? 1 : 0;
+			int ry = ((y & s) > 0) ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			if (ry == 0) { // turn the quadrant so the curve inside it runs the right way
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	// Post: returns the square of value between low and high, from 0 to 2^BITS - 1
+	private static int square(float value, float low, float high) {
+		if (high <= low) {
+			return 0;
+		}
+		int square = (int) ((value - low) / (high - low) * (1 << BITS));
+		return Math.max(0, Math.min((1 << BITS) - 1, square));
+	}
+
+	// Post: returns the square of the coarser curve, the place on the curve shifted right by
+	//       shift, that record i of data lies in
+	private static int cell(CensusColumns data, PreprocessResult corners, int shift, int i) {
+		int x = square(data.longitude[i], corners.lowLon, corners.highLon);
+		int y = square(data.realLatitude[i], corners.lowLat, corners.highLat);
+		return (int) (distance(x, y) >>> shift);
+	}
+
+	/*
+	 * Counts the records from start (inclusive) to end (exclusive) in every square.
+	 */
+	@SuppressWarnings("serial")
+	private static class CountCells extends RecursiveAction {
+		private CensusColumns data;
+		private PreprocessResult corners;
+		private int shift;
+		private AtomicIntegerArray counts;
+		private int start, end;
+
+		public CountCells(CensusColumns data, PreprocessResult corners, int shift, AtomicIntegerArray counts,
+				int start, int end) {
+			this.data = data;
+			this.corners = corners;
+			this.shift = shift;
+			this.counts = counts;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (int i = start; i < end; i++) {
+					counts.incrementAndGet(cell(data, corners, shift, i));
+				}
+			} else {
+				int mid = (start + end) / 2;
+				CountCells left = new CountCells(data, corners, shift, counts, start, mid);
+				CountCells right = new CountCells(data, corners, shift, counts, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Puts the indexes of the records from start (inclusive) to end (exclusive) in the next
+	 * free place of their square in order.
+	 */
+	@SuppressWarnings("serial")
+	private static class PlaceRecords extends RecursiveAction {
+		private CensusColumns data;
+		private PreprocessResult corners;
+		private int shift;
+		private AtomicIntegerArray next;
+		private int[] order;
+		private int start, end;
+
+		public PlaceRecords(CensusColumns data, PreprocessResult corners, int shift, AtomicIntegerArray next,
+				int[] order, int start, int end) {
+			this.data = data;
+			this.corners = corners;
+			this.shift = shift;
+			this.next = next;
+			this.order = order;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (int i = start; i < end; i++) {
+					order[next.getAndIncrement(cell(data, corners, shift, i))] = i;
+				}
+			} else {
+				int mid = (start + end) / 2;
+				PlaceRecords left = new PlaceRecords(data, corners, shift, next, order, start, mid);
+				PlaceRecords right = new PlaceRecords(data, corners, shift, next, order, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Sorts the indexes of the records of squares minCell (inclusive) to maxCell (exclusive),
+	 * square by square. ends holds where every square ends in order.
+	 */
+	@SuppressWarnings("serial")
+	private static class SortCells extends RecursiveAction {
+		private AtomicIntegerArray ends;
+		private int[] order;
+		private int minCell, maxCell;
+
+		public SortCells(AtomicIntegerArray ends, int[] order, int minCell, int maxCell) {
+			this.ends = ends;
+			this.order = order;
+			this.minCell = minCell;
+			this.maxCell = maxCell;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxCell - minCell <= CELL_CUTOFF) {
+				int start = (minCell == 0) ? 0 : ends.get(minCell - 1);
+				for (int c = minCell; c < maxCell; c++) {
+					int end = ends.get(c);
+					if (end - start > 1) {
+						Arrays.sort(order, start, end);
+					}
+					start = end;
+				}
+			} else {
+				int mid = (minCell + maxCell) / 2;
+				SortCells left = new SortCells(ends, order, minCell, mid);
+				SortCells right = new SortCells(ends, order, mid, maxCell);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Copies the records named by order start (inclusive) to end (exclusive) to their place
+	 * in ordered.
+	 */
+	@SuppressWarnings("serial")
+	private static class Gather extends RecursiveAction {
+		private CensusColumns data, ordered;
+		private int[] order;
+		private int start, end;
+
+		public Gather(CensusColumns data, int[] order, CensusColumns ordered, int start, int end) {
+			this.data = data;
+			this.order = order;
+			this.ordered = ordered;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (int i = start; i < end; i++) {
+					int from = order[i];
+					ordered.population[i] = data.population[from];
+					ordered.realLatitude[i] = data.realLatitude[from];
+					ordered.longitude[i] = data.longitude[from];
+				}
+			} else {
+				int mid = (start + end) / 2;
+				Gather left = new Gather(data, order, ordered, start, mid);
+				Gather right = new Gather(data, order, ordered, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
@@ -8,12 +8,14 @@ import java.util.Observer;
 
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
+import javax.swing.JCheckBox;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
 import javax.swing.border.EtchedBorder;
@@ -25,6 +27,8 @@ public class InteractionPane extends JComponent {
 	private ButtonGroup versionRadios;
 	private JTextField numRowsEditorField, numColumnsEditorField;
 	private static JTextField regPopDisplay, regPercDisplay;
+	private static JProgressBar preprocessProgress;
+	private static JCheckBox liveReadout;
 
 	public InteractionPane(final JFrame appFrame){
 		this.setBorder(new EtchedBorder(EtchedBorder.RAISED));
@@ -94,6 +98,9 @@ public class InteractionPane extends JComponent {
 		programVersions.add(v4Radio);
 		programVersions.add(v5Radio);
 		programVersions.add(runButton);
+		// with the live readout on, the selection is queried while it is dragged
+		liveReadout = new JCheckBox("Live readout", false);
+		programVersions.add(liveReadout);
 		// at last, add the program Versions sub-panel to the Interaction Pane
 		add(programVersions);
 		
@@ -208,6 +215,10 @@ public class InteractionPane extends JComponent {
 		percDisplaySubPanel.add(regPercDisplay);
 		dataDisplayPanel.add(popDisplaySubPanel);
 		dataDisplayPanel.add(percDisplaySubPanel);
+		// preprocessing runs in the background, so show how far along it is
+		preprocessProgress = new JProgressBar(0, 100);
+		preprocessProgress.setStringPainted(true);
+		dataDisplayPanel.add(preprocessProgress);
 		// add this data display sub-panel to the Interaction Pane
 		this.add(dataDisplayPanel);
 	}
@@ -262,10 +273,25 @@ public class InteractionPane extends JComponent {
 	}
 	
 	public static void displayCensusData(int pop, double perc){
+		displayCensusData(pop, perc, false);
+	}
+	
+	// approximate answers, from the population sample, are shown with a ~ in front
+	public static void displayCensusData(int pop, double perc, boolean approximate){
 		//System.out.println(pop + " and " + perc);
-		regPopDisplay.setText("" + pop);
+		String prefix = approximate ? "~" : "";
+		regPopDisplay.setText(prefix + pop);
 		DecimalFormat twoDecimals = new DecimalFormat("#.##");
-		regPercDisplay.setText(twoDecimals.format(perc) + "%");		
+		regPercDisplay.setText(prefix + twoDecimals.format(perc) + "%");		
+	}
+	
+	public static boolean isLiveReadout(){
+		return liveReadout.isSelected();
+	}
+	
+	public static void displayProgress(int percent){
+		preprocessProgress.setValue(percent);
+		preprocessProgress.setString(percent < 100 ? "Preprocessing " + percent + "%" : "Ready");
 	}
 	
 }
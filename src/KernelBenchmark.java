@@ -0,0 +1,125 @@
+import java.util.Random;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Measures the throughput of the CoordinateKernels against the original loops over
+ * CensusGroup objects, on a real input file. Build src-vector and run with
+ * --add-modules jdk.incubator.vector to include the SIMD kernels.
+ *
+ * argument 1: file name for input data
+ * argument 2 (optional): number of timed repetitions, 200 by default
+ */
+public class KernelBenchmark {
+	private static final int WARMUP_REPETITIONS = 500; // the vector loops need many calls before C2 compiles them
+	private static final int DEFAULT_REPETITIONS = 200;
+	private static final int RECTANGLES = 16;
+
+	public static void main(String[] args) {
+		CensusData data = PopulationQuery.parse(args[0]);
+		// the original objects, for the baseline the kernels replaced, taken before the
+		// records are moved into the columns
+		CensusGroup[] groups = new CensusGroup[data.data_size];
+		for (int i = 0; i < groups.length; i++) {
+			groups[i] = data.get(i);
+		}
+		CensusColumns columns = new CensusColumns(data);
+		int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_REPETITIONS;
+		PreprocessResult bounds = CoordinateKernels.SCALAR.findCornersPop(columns, 0, columns.size);
+		float[][] rectangles = randomRectangles(bounds);
+
+		System.out.println(columns.size + " records, " + repetitions + " repetitions");
+		report("objects", columns, groups, null, rectangles, repetitions);
+		report(CoordinateKernels.SCALAR.getName(), columns, groups, CoordinateKernels.SCALAR, rectangles, repetitions);
+		CoordinateKernels vector = CoordinateKernels.vector();
+		if (vector == null) {
+			System.out.println("vector kernels unavailable, build src-vector and run with --add-modules jdk.incubator.vector");
+		} else {
+			report(vector.getName(), columns, groups, vector, rectangles, repetitions);
+		}
+	}
+
+	// Post: times the corners and range loops of the kernels, or of the original object
+	//       loops if kernels is null, printing millions of records per second
+	private static void report(String name, CensusColumns columns, CensusGroup[] groups, CoordinateKernels kernels,
+			float[][] rectangles, int repetitions) {
+		long check = 0;
+		for (int i = 0; i < WARMUP_REPETITIONS; i++) {
+			check += corners(groups, columns, kernels) + ranges(groups, columns, kernels, rectangles);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < repetitions; i++) {
+			check += corners(groups, columns, kernels);
+		}
+		long cornersTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < repetitions; i++) {
+			check += ranges(groups, columns, kernels, rectangles);
+		}
+		long rangesTime = System.nanoTime() - start;
+		double records = (double) columns.size * repetitions;
+		System.out.printf("%-20s corners %8.1f M records/s   range %8.1f M records/s   (check %d)%n", name,
+				records / cornersTime * 1000, records * rectangles.length / rangesTime * 1000, check);
+	}
+
+	private static long corners(CensusGroup[] groups, CensusColumns columns, CoordinateKernels kernels) {
+		if (kernels != null) {
+			return checksum(kernels.findCornersPop(columns, 0, columns.size));
+		}
+		PreprocessResult res = new PreprocessResult();
+		res.highLat = groups[0].realLatitude;
+		res.lowLat = res.highLat;
+		res.highLon = groups[0].longitude;
+		res.lowLon = res.highLon;
+		for (int i = 0; i < groups.length; i++) {
+			CensusGroup group = groups[i];
+			res.totPop += group.population;
+			res.highLon = Math.max(res.highLon, group.longitude);
+			res.lowLon = Math.min(res.lowLon, group.longitude);
+			res.highLat = Math.max(res.highLat, group.realLatitude);
+			res.lowLat = Math.min(res.lowLat, group.realLatitude);
+		}
+		return checksum(res);
+	}
+
+	// Post: folds every field of res into the check value, so no part of a loop can be skipped
+	private static long checksum(PreprocessResult res) {
+		return res.totPop + Float.floatToIntBits(res.highLat) + Float.floatToIntBits(res.lowLat)
+				+ Float.floatToIntBits(res.highLon) + Float.floatToIntBits(res.lowLon);
+	}
+
+	private static long ranges(CensusGroup[] groups, CensusColumns columns, CoordinateKernels kernels,
+			float[][] rectangles) {
+		long total = 0;
+		for (float[] r : rectangles) {
+			if (kernels != null) {
+				total += kernels.sumInRange(columns, 0, columns.size, r[0], r[1], r[2], r[3]);
+				continue;
+			}
+			for (int i = 0; i < groups.length; i++) {
+				CensusGroup censusBlock = groups[i];
+				boolean isContained = censusBlock.longitude >= r[0] && censusBlock.realLatitude >= r[1] &&
+						censusBlock.longitude < r[2] && censusBlock.realLatitude < r[3];
+				if (isContained) {
+					total += censusBlock.population;
+				}
+			}
+		}
+		return total;
+	}
+
+	// Post: returns rectangles {minLon, minLat, maxLon, maxLat} spread over the map
+	private static float[][] randomRectangles(PreprocessResult bounds) {
+		Random random = new Random(42);
+		float[][] rectangles = new float[RECTANGLES][];
+		for (int i = 0; i < RECTANGLES; i++) {
+			float lon1 = bounds.lowLon + random.nextFloat() * (bounds.highLon - bounds.lowLon);
+			float lon2 = bounds.lowLon + random.nextFloat() * (bounds.highLon - bounds.lowLon);
+			float lat1 = bounds.lowLat + random.nextFloat() * (bounds.highLat - bounds.lowLat);
+			float lat2 = bounds.lowLat + random.nextFloat() * (bounds.highLat - bounds.lowLat);
+			rectangles[i] = new float[] {Math.min(lon1, lon2), Math.min(lat1, lat2),
+					Math.max(lon1, lon2), Math.max(lat1, lat2)};
+		}
+		return rectangles;
+	}
+}
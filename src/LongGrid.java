@@ -0,0 +1,255 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * A grid of 64-bit counts laid out flat, one row after another, so square (x, y) is element
+ * y * columns + x. The elements are kept in pages of 2^20 (8 MB) rather than one array, so
+ * a grid is not held to the length of a Java array or to one object per column, and a grid
+ * of billions of squares can be built, summed and queried. The pages are either long arrays
+ * on the heap or parts of a memory-mapped file, for grids that do not fit in the heap; the
+ * operating system then keeps in memory only the pages being used.
+ *
+ * Squares are numbered from 0 here, like the int[x][y] grids used elsewhere.
+ */
+public class LongGrid {
+	private static final int PAGE_BITS = 20;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private int columns;
+	private int rows;
+	private long[][] pages; // null if mapped
+	private LongBuffer[] mappedPages; // null if on the heap
+
+	// Pre: columns and rows positive
+	// Post: creates a grid of zeros on the heap
+	public LongGrid(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+		pages = new long[pageCount(columns, rows)][];
+		for (int p = 0; p < pages.length; p++) {
+			pages[p] = new long[pageLength(columns, rows, p)];
+		}
+	}
+
+	private LongGrid(int columns, int rows, LongBuffer[] mappedPages) {
+		this.columns = columns;
+		this.rows = rows;
+		this.mappedPages = mappedPages;
+	}
+
+	// Pre: columns and rows positive, file can be written
+	// Post: creates a grid of zeros backed by the given file, which is replaced
+	public static LongGrid mapped(int columns, int rows, File file) throws IOException {
+		LongBuffer[] mappedPages = new LongBuffer[pageCount(columns, rows)];
+		// deleted rather than truncated, since an older grid may still have the file mapped
+		Files.deleteIfExists(file.toPath());
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			for (int p = 0; p < mappedPages.length; p++) {
+				// mapping past the end of the file grows it with zeros, and the mapping
+				// stays valid once the channel is closed
+				mappedPages[p] = channel.map(FileChannel.MapMode.READ_WRITE, (long) p * PAGE_SIZE * 8,
+						(long) pageLength(columns, rows, p) * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+			}
+		}
+		return new LongGrid(columns, rows, mappedPages);
+	}
+
+	// Pre: cells has the same dimensions as the grid
+	// Post: sets every square to the value of cells[x][y]
+	public void copyFrom(int[][] cells) {
+		for (int x = 0; x < columns; x++) {
+			for (int y = 0; y < rows; y++) {
+				set(x, y, cells[x][y]);
+			}
+		}
+	}
+
+	// Pre: every value fits in an int
+	// Post: returns the values as cells[x][y]
+	public int[][] toArray() {
+		int[][] cells = new int[columns][rows];
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < columns; x++) {
+				cells[x][y] = (int) get(x, y);
+			}
+		}
+		return cells;
+	}
+
+	private static int pageCount(int columns, int rows) {
+		return (int) (((long) columns * rows + PAGE_SIZE - 1) >>> PAGE_BITS);
+	}
+
+	private static int pageLength(int columns, int rows, int page) {
+		long cells = (long) columns * rows;
+		return (int) Math.min(PAGE_SIZE, cells - ((long) page << PAGE_BITS));
+	}
+
+	// Post: returns the number of columns
+	public int getColumns() {
+		return columns;
+	}
+
+	// Post: returns the number of rows
+	public int getRows() {
+		return rows;
+	}
+
+	// Post: returns true if the grid is backed by a file
+	public boolean isMapped() {
+		return mappedPages != null;
+	}
+
+	// Pre: 0 <= x < columns, 0 <= y < rows
+	// Post: returns the value of square (x, y)
+	public long get(int x, int y) {
+		return get((long) y * columns + x);
+	}
+
+	// Pre: 0 <= x < columns, 0 <= y < rows
+	// Post: sets the value of square (x, y)
+	public void set(int x, int y, long value) {
+		set((long) y * columns + x, value);
+	}
+
+	// Pre: 0 <= x < columns, 0 <= y < rows
+	// Post: adds to the value of square (x, y). Not safe for two threads on one square.
+	public void add(int x, int y, long value) {
+		long index = (long) y * columns + x;
+		set(index, get(index) + value);
+	}
+
+	// Pre: 0 <= index < columns * rows
+	// Post: returns the element at the given index of the row after row layout
+	public long get(long index) {
+		int page = (int) (index >>> PAGE_BITS);
+		int offset = (int) index & PAGE_MASK;
+		return (pages != null) ? pages[page][offset] : mappedPages[page].get(offset);
+	}
+
+	// Pre: 0 <= index < columns * rows
+	// Post: sets the element at the given index of the row after row layout
+	public void set(long index, long value) {
+		int page = (int) (index >>> PAGE_BITS);
+		int offset = (int) index & PAGE_MASK;
+		if (pages != null) {
+			pages[page][offset] = value;
+		} else {
+			mappedPages[page].put(offset, value);
+		}
+	}
+
+	// Post: turns the grid of populations into the grid of sums getPopulationFromGrid reads,
+	//       where square (x, y) holds the population of every square (x', y') with x' <= x
+	//       and y' <= y, the same as PopulationQuery.updateGridToSum
+	public void toSums() {
+		new SumRows(0, rows).compute();
+		new SumColumns(0, columns).compute();
+	}
+
+	// Post: like toSums, using fork-join parallelism. The rows are summed across first, every
+	//       row on its own, then the columns, every band of columns on its own.
+	public void toSums(ForkJoinPool fjPool) {
+		fjPool.invoke(new SumRows(0, rows));
+		fjPool.invoke(new SumColumns(0, columns));
+	}
+
+	// Pre: the grid holds sums, 1 <= w <= e <= columns, 1 <= s <= n <= rows
+	// Post: returns the population of the squares from column w to e and row s to n, counting
+	//       from 1 and inclusive, like the queries
+	public long population(int w, int s, int e, int n) {
+		long population = get(e - 1, n - 1);
+		boolean furtherWestSquare = (w > 1);
+		boolean furtherSouthSquare = (s > 1);
+		if (furtherWestSquare) {
+			population -= get(w - 2, n - 1);
+		}
+		if (furtherSouthSquare) {
+			population -= get(e - 1, s - 2);
+		}
+		if (furtherWestSquare && furtherSouthSquare) {
+			population += get(w - 2, s - 2);
+		}
+		return population;
+	}
+
+	/*
+	 * Sums along rows minY (inclusive) to maxY (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private class SumRows extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 1 << 16; // squares
+		private int minY, maxY;
+
+		public SumRows(int minY, int maxY) {
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxY - minY <= 1 || (long) (maxY - minY) * columns <= SEQUENTIAL_CUTOFF) {
+				for (int y = minY; y < maxY; y++) {
+					long index = (long) y * columns;
+					long sum = 0;
+					for (int x = 0; x < columns; x++, index++) {
+						sum += LongGrid.this.get(index);
+						set(index, sum);
+					}
+				}
+			} else {
+				int midY = (minY + maxY) / 2;
+				SumRows left = new SumRows(minY, midY);
+				SumRows right = new SumRows(midY, maxY);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Sums up columns minX (inclusive) to maxX (exclusive), a row at a time so that each
+	 * step reads along the layout.
+	 */
+	@SuppressWarnings("serial")
+	private class SumColumns extends RecursiveAction {
+		private static final int SEQUENTIAL_CUTOFF = 1 << 16; // squares
+		private int minX, maxX;
+
+		public SumColumns(int minX, int maxX) {
+			this.minX = minX;
+			this.maxX = maxX;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxX - minX <= 1 || (long) (maxX - minX) * rows <= SEQUENTIAL_CUTOFF) {
+				for (int y = 1; y < rows; y++) {
+					long below = (long) (y - 1) * columns + minX;
+					long index = (long) y * columns + minX;
+					for (int x = minX; x < maxX; x++, below++, index++) {
+						set(index, LongGrid.this.get(index) + LongGrid.this.get(below));
+					}
+				}
+			} else {
+				int midX = (minX + maxX) / 2;
+				SumColumns left = new SumColumns(minX, midX);
+				SumColumns right = new SumColumns(midX, maxX);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
@@ -6,14 +6,21 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.MediaTracker;
 import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
 
 @SuppressWarnings("serial")
@@ -63,11 +70,9 @@ public class MapPane extends JPanel implements Observer{
 	*/
 	
 	// This is the actual Mercator Equation. Took a bloody long time to find.
+	// It lives in Mercator now, shared with the preprocessing.
 	private double mercatorConversion(double lat){
-		double latpi = lat * Math.PI / 180;
-		double x = Math.log(Math.tan(latpi) + 1 / Math.cos(latpi));
-		//System.out.println(lat + " -> " + x);
-		return x;
+		return Mercator.project(lat);
 	}
 	
 	private int rows, columns;
@@ -75,6 +80,17 @@ public class MapPane extends JPanel implements Observer{
 	private double sStartColumn, sStartRow;
 	private double sEndColumn, sEndRow;
 	private boolean selecting, zoomed;
+	// while dragging with the live readout on, the selection is queried at most once per LIVE_QUERY_DELAY ms
+	private static final int LIVE_QUERY_DELAY = 40;
+	private boolean dragging, liveChanged;
+	private Timer liveTimer;
+	// heatmap and grid lines are drawn into overlay, which is kept until the grid, zoom or size changes
+	private static final double MIN_LINE_SPACING = 4;
+	private int[][] cellPopulations;
+	private boolean showHeatmap;
+	private BufferedImage overlay;
+	private int overlayColumns, overlayRows;
+	private boolean overlayZoomed;
 	
 	public int getRows(){
 		return rows; 
@@ -114,36 +130,18 @@ public class MapPane extends JPanel implements Observer{
 		double rWidth = 1.0 * width / columns;
 		// draw map
 		g2.drawImage(currentImage, 1, 1, width, height, null);
+		int startX = 0;
+		int startY = 0;
 		if(zoomed){
 			//expand the rectangles
 			rHeight *= H_ZOOM_FACTOR;
 			rWidth *= W_ZOOM_FACTOR;
 			//shift their start point
-			int startX = -(int)(width * W_ZOOM_FACTOR * RIGHT_SHIFT);
-			int startY = -(int)(height * H_ZOOM_FACTOR * DOWN_SHIFT);
-			// draw squares
-			for(int x = 0; x < columns; x++){
-				for(int y = 0; y < rows; y++){
-					double rX = x * rWidth + startX;
-					double rY = y * rHeight + startY;
-					if((rX + rWidth > 0 && rY + rHeight > 0) ||
-							(rX < width && rY < height)){
-						//if the rectangle is within the viewing area
-						Rectangle2D r = new Rectangle2D.Double(rX, rY, rWidth, rHeight);
-						g2.draw(r);
-					}					
-				}
-			}
-		} else {
-			// draw squares			
-			//System.out.println(rWidth + ", " + rHeight);
-			for(int x = 0; x < columns; x++){
-				for(int y = 0; y < rows; y++){
-					Rectangle2D r = new Rectangle2D.Double(x * rWidth, y * rHeight, rWidth, rHeight);
-					g2.draw(r);
-				}
-			}
+			startX = -(int)(width * W_ZOOM_FACTOR * RIGHT_SHIFT);
+			startY = -(int)(height * H_ZOOM_FACTOR * DOWN_SHIFT);
 		}
+		// draw the heatmap and squares, which are only redrawn when the grid, zoom or size changes
+		g2.drawImage(getOverlay(width, height, rWidth, rHeight, startX, startY), 0, 0, null);
 				
 		
 		// For debugging: Draw some cities on top of the background image. Then line the image up with these cities.
@@ -177,8 +175,6 @@ public class MapPane extends JPanel implements Observer{
 			double recHeight = trueHeight * rHeight;
 			if(zoomed){
 				//translate and expand the selection rectangle for zoom
-				int startX = -(int)(width * W_ZOOM_FACTOR * RIGHT_SHIFT);
-				int startY = -(int)(height * H_ZOOM_FACTOR * DOWN_SHIFT);
 				recX += startX;
 				recY += startY;
 				//recWidth *= W_ZOOM_FACTOR;
@@ -196,6 +192,60 @@ public class MapPane extends JPanel implements Observer{
 		//System.out.println(rows + "X" + columns);
 	}
 	
+	// Post: returns the cached image of the heatmap and grid squares, redrawing it first if
+	//       anything it depends on has changed since it was drawn
+	private BufferedImage getOverlay(int width, int height, double rWidth, double rHeight,
+			int startX, int startY){
+		boolean isCurrent = overlay != null && overlay.getWidth() == width && overlay.getHeight() == height &&
+				overlayColumns == columns && overlayRows == rows && overlayZoomed == zoomed;
+		if(isCurrent){
+			return overlay;
+		}
+		overlay = new BufferedImage(Math.max(width, 1), Math.max(height, 1), BufferedImage.TYPE_INT_ARGB);
+		overlayColumns = columns;
+		overlayRows = rows;
+		overlayZoomed = zoomed;
+		// the populations may still be for the previous grid while it is being preprocessed
+		boolean hasHeatmap = showHeatmap && cellPopulations != null &&
+				cellPopulations.length == columns && cellPopulations[0].length == rows;
+		if(hasHeatmap){
+			HeatmapRenderer.render(cellPopulations, overlay, rWidth, rHeight, startX, startY,
+					ForkJoinPool.commonPool());
+		}
+		// draw squares as grid lines, leaving them out once they would cover the map
+		if(rWidth >= MIN_LINE_SPACING && rHeight >= MIN_LINE_SPACING){
+			Graphics2D g2 = overlay.createGraphics();
+			g2.setColor(Color.BLACK);
+			for(int x = 0; x <= columns; x++){
+				double rX = x * rWidth + startX;
+				g2.draw(new Line2D.Double(rX, startY, rX, startY + rows * rHeight));
+			}
+			for(int y = 0; y <= rows; y++){
+				double rY = y * rHeight + startY;
+				g2.draw(new Line2D.Double(startX, rY, startX + columns * rWidth, rY));
+			}
+			g2.dispose();
+		}
+		return overlay;
+	}
+	
+	// Post: shows the given population of each grid square as a heatmap
+	public void setCellPopulations(int[][] cells){
+		cellPopulations = cells;
+		overlay = null;
+		repaint();
+	}
+	
+	public void setHeatmapVisible(boolean visible){
+		showHeatmap = visible;
+		overlay = null;
+		repaint();
+	}
+	
+	public boolean isHeatmapVisible(){
+		return showHeatmap;
+	}
+	
 	public MapPane(final JFrame appFrame){
 		super(new BorderLayout(0,1));
 		this.setBorder(new EtchedBorder(EtchedBorder.RAISED));
@@ -218,7 +268,8 @@ public class MapPane extends JPanel implements Observer{
 			public void mouseEntered(MouseEvent e) { }
 
 			public void mouseExited(MouseEvent e) {
-				if(selecting){
+				if(selecting || dragging){
+					selecting = true;
 					Component mapPane = e.getComponent();
 					int w = mapPane.getWidth();
 					int h = mapPane.getHeight();
@@ -253,13 +304,19 @@ public class MapPane extends JPanel implements Observer{
 					y = (int)(y + h * DOWN_SHIFT);
 				}
 				selecting = true;
+				dragging = true;
 				sStartColumn = x / (1.0 * w / columns);
 				sStartRow = y / (1.0 * h / rows);
 				//System.out.println("(" + sStartRow + "," + sStartColumn + ")");
+				if(InteractionPane.isLiveReadout()){
+					liveChanged = false;
+					liveTimer.start();
+				}
 			}
 
 			public void mouseReleased(MouseEvent e) {
-				if(selecting){
+				if(selecting || dragging){
+					selecting = true;
 					Component mapPane = e.getComponent();
 					int w = mapPane.getWidth();
 					int h = mapPane.getHeight();
@@ -276,6 +333,46 @@ public class MapPane extends JPanel implements Observer{
 					sEndRow = y / (1.0 * h / rows);
 					mapPane.repaint();
 				}
+				if(dragging && liveTimer.isRunning()){
+					liveTimer.stop();
+					USMaps.runLive(); // the final rectangle is always answered
+				}
+				dragging = false;
+			}
+		});
+		this.addMouseMotionListener(new MouseMotionListener(){
+			public void mouseMoved(MouseEvent e) { }
+
+			public void mouseDragged(MouseEvent e) {
+				if(dragging){
+					Component mapPane = e.getComponent();
+					int w = mapPane.getWidth();
+					int h = mapPane.getHeight();
+					int x = e.getX();
+					int y = e.getY();
+					if(zoomed){
+						//adjust to reflect the position on the overall map
+						w *= W_ZOOM_FACTOR;
+						h *= H_ZOOM_FACTOR;
+						x = (int)(x + w * RIGHT_SHIFT);
+						y = (int)(y + h * DOWN_SHIFT);
+					}
+					// the pointer can be dragged past the map, so stay within the grid
+					sEndColumn = Math.min(Math.max(x / (1.0 * w / columns), 0), columns - 1);
+					sEndRow = Math.min(Math.max(y / (1.0 * h / rows), 0), rows - 1);
+					selecting = true;
+					liveChanged = true;
+					mapPane.repaint();
+				}
+			}
+		});
+		// coalesces drag updates so that only the latest rectangle is queried
+		liveTimer = new Timer(LIVE_QUERY_DELAY, new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				if(liveChanged){
+					liveChanged = false;
+					USMaps.runLive();
+				}
 			}
 		});
 	}
@@ -285,7 +382,7 @@ public class MapPane extends JPanel implements Observer{
 			InteractionPane.MapGrid mg = (InteractionPane.MapGrid)o;
 			rows = mg.getRows();
 			columns = mg.getColumns();
-			USMaps.pqPreprocess();
+			USMaps.pqRegrid();
 			this.repaint();
 		}
 	}
@@ -0,0 +1,149 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The Mercator projection of latitudes, which makes the rows of the grid line up with the
+ * background map. Projecting used to happen inside every CensusGroup constructor; it is now
+ * a stage of its own that projects a whole array of latitudes in parallel, and only when the
+ * records are binned. The scans of versions 1 and 2 never project records at all: since the
+ * projection only ever increases, they compare the real latitudes against the lowest real
+ * latitudes that project onto the edges of the query (see lowestProjectingTo).
+ *
+ * There are two modes. The exact mode is the formula the program has always used. The fast
+ * mode, chosen with the system property pq.mercator=fast, interpolates linearly in a table
+ * of the exact projection every 1/64 of a degree between -89 and 89 degrees. The error of
+ * linear interpolation is at most h^2/8 times the second derivative, sec(lat)tan(lat), which
+ * for h = 1/64 degree is under 2e-7 below 72 degrees (the northern tip of Alaska) and under
+ * 3e-6 below 85 degrees, within a few float ulps of the exact value for all of the census.
+ */
+public class Mercator {
+	public static final boolean FAST = System.getProperty("pq.mercator", "").equals("fast");
+	private static final int STEPS_PER_DEGREE = 64;
+	private static final float TABLE_LIMIT = 89;
+	private static final float[] TABLE = buildTable();
+	private static final int SEQUENTIAL_CUTOFF = 10000;
+
+	// Post: returns the exact projection of lat, in degrees, in double precision
+	public static double project(double lat) {
+		double latpi = lat * Math.PI / 180;
+		return Math.log(Math.tan(latpi) + 1 / Math.cos(latpi));
+	}
+
+	// Post: returns the exact projection of lat, in degrees, as the census data stores it
+	public static float projectExact(float lat) {
+		float latpi = (float)(lat * Math.PI / 180);
+		return (float)Math.log(Math.tan(latpi) + 1 / Math.cos(latpi));
+	}
+
+	// Post: returns the projection of lat, in degrees, interpolated from the table. Outside
+	//       the table it falls back to the exact projection.
+	public static float projectFast(float lat) {
+		if (!(lat > -TABLE_LIMIT && lat < TABLE_LIMIT)) {
+			return projectExact(lat);
+		}
+		float position = (lat + TABLE_LIMIT) * STEPS_PER_DEGREE;
+		int index = (int) position;
+		float fraction = position - index;
+		return TABLE[index] + fraction * (TABLE[index + 1] - TABLE[index]);
+	}
+
+	// Post: returns the projection of lat in the mode the program runs in
+	public static float projectLatitude(float lat) {
+		return FAST ? projectFast(lat) : projectExact(lat);
+	}
+
+	// Pre: realLatitude and latitude at least size long
+	// Post: projects the first size real latitudes into latitude using fork-join parallelism
+	public static void projectAll(float[] realLatitude, float[] latitude, int size, ForkJoinPool fjPool) {
+		fjPool.invoke(new ProjectLatitudes(realLatitude, latitude, 0, size));
+	}
+
+	// Post: returns the smallest float x strictly between -90 and 90 with projectLatitude(x) >= y,
+	//       so that for every such latitude lat, projectLatitude(lat) >= y exactly when lat is
+	//       at least the returned value. Returns infinity of the matching sign if no latitude,
+	//       or every latitude, qualifies. The poles themselves do not project to a number.
+	public static float lowestProjectingTo(float y) {
+		float south = Math.nextUp(-90f);
+		float north = Math.nextDown(90f);
+		if (!(projectLatitude(north) >= y)) {
+			return Float.POSITIVE_INFINITY;
+		}
+		if (projectLatitude(south) >= y) {
+			return Float.NEGATIVE_INFINITY;
+		}
+		// binary search over floats in order, by way of their ordered integer keys
+		long low = orderedKey(south); // projects below y
+		long high = orderedKey(north); // projects at or above y
+		while (high - low > 1) {
+			long mid = (low + high) / 2;
+			if (projectLatitude(fromOrderedKey(mid)) >= y) {
+				high = mid;
+			} else {
+				low = mid;
+			}
+		}
+		return fromOrderedKey(high);
+	}
+
+	// Post: returns an int that orders the same way as the float f does. The keys of all
+	//       latitudes span more than an int, so searches over them are done in longs.
+	private static int orderedKey(float f) {
+		int bits = Float.floatToIntBits(f);
+		return (bits >= 0) ? bits : bits ^ Integer.MAX_VALUE;
+	}
+
+	private static float fromOrderedKey(long longKey) {
+		int key = (int) longKey;
+		return Float.intBitsToFloat((key >= 0) ? key : key ^ Integer.MAX_VALUE);
+	}
+
+	private static float[] buildTable() {
+		int entries = (int) (2 * TABLE_LIMIT * STEPS_PER_DEGREE) + 1;
+		float[] table = new float[entries + 1];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (float) project(-TABLE_LIMIT + (double) i / STEPS_PER_DEGREE);
+		}
+		return table;
+	}
+
+	/*
+	 * Projects the latitudes from start (inclusive) to end (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private static class ProjectLatitudes extends RecursiveAction {
+		private float[] realLatitude;
+		private float[] latitude;
+		private int start, end;
+
+		public ProjectLatitudes(float[] realLatitude, float[] latitude, int start, int end) {
+			this.realLatitude = realLatitude;
+			this.latitude = latitude;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				if (FAST) {
+					for (int i = start; i < end; i++) {
+						latitude[i] = projectFast(realLatitude[i]);
+					}
+				} else {
+					for (int i = start; i < end; i++) {
+						latitude[i] = projectExact(realLatitude[i]);
+					}
+				}
+			} else {
+				int mid = (start + end) / 2;
+				ProjectLatitudes left = new ProjectLatitudes(realLatitude, latitude, start, mid);
+				ProjectLatitudes right = new ProjectLatitudes(realLatitude, latitude, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Builds grids of sums of several sizes at once, such as 100 by 50, 73 by 41 and 500 by 250
+ * for one dashboard, where sizes that do not divide each other cannot be read off one
+ * another the way GridPyramid does. The borders come from one preprocess, and one parallel
+ * pass over the records bins every record into every grid. Every task of the pass bins a
+ * share of the records into grids of its own, and the tasks' grids are added together
+ * afterwards, so there are about as many tasks as threads. The grids are then turned into
+ * sums all at once.
+ *
+ * Every grid is binned exactly as the grid-based versions bin it, so each one answers the
+ * same as preprocessing for its size on its own.
+ */
+public class MultiGridBuild {
+	private static final int MIN_RECORDS_PER_TASK = 1 << 16;
+	private static final int SEQUENTIAL_CUTOFF = 1 << 16; // squares added by one task
+
+	/*
+	 * One grid of sums, which cannot be changed once built.
+	 */
+	public static final class Grid {
+		private final LongGrid sums;
+
+		private Grid(LongGrid sums) {
+			this.sums = sums;
+		}
+
+		public int getColumns() {
+			return sums.getColumns();
+		}
+
+		public int getRows() {
+			return sums.getRows();
+		}
+
+		// Post: returns true if the query lies inside this grid and is not inverted
+		public boolean isValidQuery(int w, int s, int e, int n) {
+			return w >= 1 && s >= 1 && e <= getColumns() && n <= getRows() && e >= w && n >= s;
+		}
+
+		// Pre: query is valid, else throws IllegalArgumentException
+		// Post: returns the population of the squares from column w to e and row s to n,
+		//       counting from 1 and inclusive, like the queries
+		public long population(int w, int s, int e, int n) {
+			if (!isValidQuery(w, s, e, n)) {
+				throw new IllegalArgumentException();
+			}
+			return sums.population(w, s, e, n);
+		}
+	}
+
+	// Pre: data has been projected and has at least one record, preData is its borders with
+	//      projected latitudes, every size is {columns, rows} with both positive
+	// Post: returns the grid of sums of every size, in the same order
+	public static Grid[] build(CensusColumns data, PreprocessResult preData, int[][] sizes, ForkJoinPool fjPool) {
+		GridInfo[] ginfos = new GridInfo[sizes.length];
+		for (int g = 0; g < sizes.length; g++) {
+			int columns = sizes[g][0], rows = sizes[g][1];
+			if (columns < 1 || rows < 1) {
+				throw new IllegalArgumentException("grid sizes must be positive");
+			}
+			float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
+			float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
+			ginfos[g] = new GridInfo(columns, rows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+		}
+		int perTask = Math.max(MIN_RECORDS_PER_TASK,
+				(data.size + fjPool.getParallelism() - 1) / fjPool.getParallelism());
+		LongGrid[] grids = fjPool.invoke(new BinAll(data, ginfos, perTask, 0, data.size));
+
+		RecursiveAction[] sums = new RecursiveAction[grids.length];
+		for (int g = 0; g < grids.length; g++) {
+			sums[g] = new ToSums(grids[g]);
+		}
+		fjPool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(sums);
+			}
+		});
+		Grid[] result = new Grid[grids.length];
+		for (int g = 0; g < grids.length; g++) {
+			result[g] = new Grid(grids[g]);
+		}
+		return result;
+	}
+
+	/*
+	 * Bins the records from start (inclusive) to end (exclusive) into a grid of each size.
+	 */
+	@SuppressWarnings("serial")
+	private static class BinAll extends RecursiveTask<LongGrid[]> {
+		private CensusColumns data;
+		private GridInfo[] ginfos;
+		private int perTask;
+		private int start, end;
+
+		public BinAll(CensusColumns data, GridInfo[] ginfos, int perTask, int start, int end) {
+			this.data = data;
+			this.ginfos = ginfos;
+			this.perTask = perTask;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected LongGrid[] compute() {
+			if (end - start <= perTask) {
+				PopulationQuery.checkCancelled();
+				LongGrid[] grids = new LongGrid[ginfos.length];
+				for (int g = 0; g < ginfos.length; g++) {
+					grids[g] = new LongGrid(ginfos[g].getMaxCols(), ginfos[g].getMaxRows());
+				}
+				QuantizedCoordinates quantized = data.quantized;
+				for (int i = start; i < end; i++) {
+					for (int g = 0; g < ginfos.length; g++) {
+						GridInfo ginfo = ginfos[g];
+						int x, y;
+						if (quantized != null) {
+							x = quantized.column(i, ginfo);
+							y = quantized.row(i, ginfo);
+						} else {
+							x = (int) Math.floor((data.longitude[i] - ginfo.getMinLon())/ginfo.getLonGridSize());
+							y = (int) Math.floor((data.latitude[i] - ginfo.getMinLat())/ginfo.getLatGridSize());
+							if (x == ginfo.getMaxCols()) {
+								x--; //So the eastmost location gets added to the grid
+							}
+							if (y == ginfo.getMaxRows()) {
+								y--; //So the northernmost location gets added to the grid
+							}
+						}
+						grids[g].add(x, y, data.population[i]);
+					}
+				}
+				return grids;
+			} else {
+				int mid = (start + end) / 2;
+				BinAll left = new BinAll(data, ginfos, perTask, start, mid);
+				BinAll right = new BinAll(data, ginfos, perTask, mid, end);
+				left.fork();
+				LongGrid[] grids = right.compute();
+				LongGrid[] leftGrids = left.join();
+				AddGrid[] adds = new AddGrid[grids.length];
+				for (int g = 0; g < grids.length; g++) {
+					adds[g] = new AddGrid(grids[g], leftGrids[g], 0,
+							(long) grids[g].getColumns() * grids[g].getRows());
+				}
+				invokeAll(adds);
+				return grids;
+			}
+		}
+	}
+
+	/*
+	 * Adds the elements from start (inclusive) to end (exclusive) of one grid into another of
+	 * the same size.
+	 */
+	@SuppressWarnings("serial")
+	static class AddGrid extends RecursiveAction {
+		private LongGrid into, from;
+		private long start, end;
+
+		public AddGrid(LongGrid into, LongGrid from, long start, long end) {
+			this.into = into;
+			this.from = from;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (long i = start; i < end; i++) {
+					into.set(i, into.get(i) + from.get(i));
+				}
+			} else {
+				long mid = (start + end) / 2;
+				AddGrid left = new AddGrid(into, from, start, mid);
+				AddGrid right = new AddGrid(into, from, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Turns one grid into sums, rows then columns, in the pool it is run in.
+	 */
+	@SuppressWarnings("serial")
+	private static class ToSums extends RecursiveAction {
+		private LongGrid grid;
+
+		public ToSums(LongGrid grid) {
+			this.grid = grid;
+		}
+
+		@Override
+		protected void compute() {
+			grid.toSums(getPool());
+		}
+	}
+}
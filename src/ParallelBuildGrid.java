@@ -4,8 +4,8 @@ import java.util.concurrent.RecursiveTask;
 /*
  * Christopher Blappert and Michael Mitasev
  * 
- * Takes a CensusData object and a range and builds a grid corresponding to the
- * population of the grid squares. Uses fork-join parallelism to build the grid.
+ * Takes the CensusColumns of the data, projected, and a range and builds a grid corresponding
+ * to the population of the grid squares. Uses fork-join parallelism to build the grid.
  */
 
 public class ParallelBuildGrid extends RecursiveTask<int[][]> {
@@ -15,12 +15,12 @@ public class ParallelBuildGrid extends RecursiveTask<int[][]> {
 	private int max;
 	private static final int SEQUENTIAL_CUTOFF = 5000;
 	private GridInfo ginfo;
-	private CensusData cenData;
+	private CensusColumns cenData;
 	private ForkJoinPool fjPool;
 	
-	// Pre: all parameters valid and not null
+	// Pre: all parameters valid and not null, data has been projected
 	// Post: creates a new instance of this object
-	public ParallelBuildGrid(int min, int max, GridInfo info, CensusData data, ForkJoinPool fjPool) {
+	public ParallelBuildGrid(int min, int max, GridInfo info, CensusColumns data, ForkJoinPool fjPool) {
 		this.min = min;
 		this.max = max;
 		ginfo = info;
@@ -33,24 +33,30 @@ public class ParallelBuildGrid extends RecursiveTask<int[][]> {
 	@Override 
 	protected int[][] compute() {
 		if (max -  min < SEQUENTIAL_CUTOFF) {
+			PopulationQuery.checkCancelled();
 			int[][] populationGrid = new int[ginfo.getMaxCols()][ginfo.getMaxRows()];
 			for (int i = 0; i < ginfo.getMaxCols(); i++) {
 				for (int j = 0; j < ginfo.getMaxRows(); j++) {
 					populationGrid[i][j] = 0;
 				}
 			}
+			QuantizedCoordinates quantized = cenData.quantized;
 			for (int i = min; i <= max; i++) {
-				CensusGroup censusBlock = cenData.data[i];
-				int x = (int) Math.floor((censusBlock.longitude - ginfo.getMinLon())/ginfo.getLonGridSize());
-				int y = (int) Math.floor((censusBlock.latitude - ginfo.getMinLat())/ginfo.getLatGridSize());
+				if (quantized != null) {
+					populationGrid[quantized.column(i, ginfo)][quantized.row(i, ginfo)] += cenData.population[i];
+					continue;
+				}
+				int x = (int) Math.floor((cenData.longitude[i] - ginfo.getMinLon())/ginfo.getLonGridSize());
+				int y = (int) Math.floor((cenData.latitude[i] - ginfo.getMinLat())/ginfo.getLatGridSize());
 				if (x == ginfo.getMaxCols()) {
 					x--; //So the eastmost location gets added to the grid
 				}
 				if (y == ginfo.getMaxRows()) {
 					y--; //So the northernmost location gets added to the grid
 				}
-				populationGrid[x][y] += censusBlock.population;
+				populationGrid[x][y] += cenData.population[i];
 			}
+			PopulationQuery.reportBinned(max - min + 1);
 			return populationGrid;
 		} else {
 			int mid = (min + max)/2;
@@ -0,0 +1,60 @@
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Recovers the population of each grid square from a grid of sums, the inverse of
+ * LongGrid.toSums. Uses fork-join parallelism over the columns; every
+ * square only reads the sums, so the columns are independent.
+ */
+
+public class ParallelUnsumGrid extends RecursiveAction {
+
+	private static final long serialVersionUID = 6148170520736318211L;
+	private static final int SEQUENTIAL_CUTOFF = 5000;
+	private LongGrid sums;
+	private int[][] cells;
+	private int minX;
+	private int maxX;
+
+	// Pre: sums and cells have the same dimensions
+	// Post: creates a new instance of the object working on columns minX (inclusive)
+	//       to maxX (exclusive)
+	public ParallelUnsumGrid(LongGrid sums, int[][] cells, int minX, int maxX) {
+		this.sums = sums;
+		this.cells = cells;
+		this.minX = minX;
+		this.maxX = maxX;
+	}
+
+	// Post: fills cells with the population of each grid square
+	@Override
+	protected void compute() {
+		int rows = sums.getRows();
+		// Sequential cutoff calculated by the number of squares that will be filled
+		if (maxX - minX <= 1 || (maxX - minX) * rows <= SEQUENTIAL_CUTOFF) {
+			for (int i = minX; i < maxX; i++) {
+				for (int j = 0; j < rows; j++) {
+					long population = sums.get(i, j);
+					if (i > 0) {
+						population -= sums.get(i - 1, j);
+					}
+					if (j > 0) {
+						population -= sums.get(i, j - 1);
+					}
+					if (i > 0 && j > 0) {
+						population += sums.get(i - 1, j - 1);
+					}
+					cells[i][j] = (int) population;
+				}
+			}
+		} else {
+			int midX = (minX + maxX) / 2;
+			ParallelUnsumGrid left = new ParallelUnsumGrid(sums, cells, minX, midX);
+			ParallelUnsumGrid right = new ParallelUnsumGrid(sums, cells, midX, maxX);
+			left.fork();
+			right.compute();
+			left.join();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * A quadtree of the records, refined only where they are dense, for versions 1 and 2, which
+ * otherwise scan every record for every query. A node covers the smallest box around its
+ * records and knows their total population. A node with more than maxRecords records, or
+ * more than maxPopulation people, is split into four at the middle of its box, so the tree
+ * goes deep over cities and stays shallow over open land and water. Empty parts of the map
+ * get no nodes at all: the memory is proportional to the records, never to the area.
+ *
+ * A query takes the total of every node whose box lies inside it, skips every node whose
+ * box misses it, and scans only the records of the leaves its edges cut. A rectangle whose
+ * edges cut no leaf is answered from the totals alone. Boxes and query edges are compared
+ * the way the scans compare records, so the answers are exactly those of the scans.
+ *
+ * The tree keeps its own copy of the records, in the order of its leaves, so that every
+ * leaf's records are next to each other. It is built top down with fork-join parallelism.
+ *
+ * Built by versions 1 and 2 when the system property pq.adaptive=most records per leaf is
+ * set. pq.adaptivepop=most people per leaf also limits the population of a leaf.
+ */
+public class PopulationQuadtree {
+	public static final int MAX_RECORDS = Integer.getInteger("pq.adaptive", 0);
+	public static final long MAX_POPULATION = Long.getLong("pq.adaptivepop", 0);
+	private static final int SEQUENTIAL_CUTOFF = 1 << 14; // records
+	private CensusColumns records; // in the order of the leaves
+	private Node root;
+	private int maxRecords;
+	private long maxPopulation;
+
+	/*
+	 * A box of the map and the records in it, records start (inclusive) to end (exclusive).
+	 * Leaves have no children, and the children of a node are never empty.
+	 */
+	private static class Node {
+		private float minLon, minLat, maxLon, maxLat; // real latitudes, all inclusive
+		private long population;
+		private int start, end;
+		private Node[] children;
+	}
+
+	// Post: returns true if a quadtree should be built
+	public static boolean isEnabled() {
+		return MAX_RECORDS > 0;
+	}
+
+	// Pre: data has at least one record, maxRecords positive, maxPopulation 0 for no limit
+	// Post: builds the tree of the records of data, leaving data as it was
+	public PopulationQuadtree(CensusColumns data, int maxRecords, long maxPopulation, ForkJoinPool fjPool) {
+		if (maxRecords < 1) {
+			throw new IllegalArgumentException("pq.adaptive must be positive");
+		}
+		this.maxRecords = maxRecords;
+		this.maxPopulation = (maxPopulation > 0) ? maxPopulation : Long.MAX_VALUE;
+		int[] population = new int[data.size];
+		float[] realLatitude = new float[data.size];
+		float[] longitude = new float[data.size];
+		System.arraycopy(data.population, 0, population, 0, data.size);
+		System.arraycopy(data.realLatitude, 0, realLatitude, 0, data.size);
+		System.arraycopy(data.longitude, 0, longitude, 0, data.size);
+		records = new CensusColumns(population, realLatitude, longitude, data.size);
+		root = fjPool.invoke(new Build(0, data.size));
+	}
+
+	// Pre: bounds is {minLongitude, minLatitude, maxLongitude, maxLatitude} with real
+	//      latitudes, as from PopulationQuery.queryBounds
+	// Post: returns the population of the records with longitude in [minLongitude,
+	//       maxLongitude) and real latitude in [minLatitude, maxLatitude)
+	public long population(float[] bounds) {
+		return population(root, bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+
+	private long population(Node node, float west, float south, float east, float north) {
+		if (node.maxLon < west || node.minLon >= east || node.maxLat < south || node.minLat >= north) {
+			return 0;
+		}
+		if (node.minLon >= west && node.maxLon < east && node.minLat >= south && node.maxLat < north) {
+			return node.population;
+		}
+		if (node.children == null) {
+			return CoordinateKernels.INSTANCE.sumInRange(records, node.start, node.end, west, south, east, north);
+		}
+		long population = 0;
+		for (Node child : node.children) {
+			population += population(child, west, south, east, north);
+		}
+		return population;
+	}
+
+	// Post: returns the number of nodes, leaves included
+	public int getNodes() {
+		return count(root, false);
+	}
+
+	// Post: returns the number of leaves
+	public int getLeaves() {
+		return count(root, true);
+	}
+
+	// Post: returns the number of levels below the root
+	public int getDepth() {
+		return depth(root);
+	}
+
+	private static int count(Node node, boolean leavesOnly) {
+		if (node.children == null) {
+			return 1;
+		}
+		int count = leavesOnly ? 0 : 1;
+		for (Node child : node.children) {
+			count += count(child, leavesOnly);
+		}
+		return count;
+	}
+
+	private static int depth(Node node) {
+		int depth = 0;
+		if (node.children != null) {
+			for (Node child : node.children) {
+				depth = Math.max(depth, depth(child) + 1);
+			}
+		}
+		return depth;
+	}
+
+	public String toString() {
+		return records.size + " records, " + getNodes() + " nodes, " + getLeaves() + " leaves, depth " + getDepth();
+	}
+
+	// Post: moves the records from start (inclusive) to end (exclusive) whose longitude, or
+	//       real latitude if byLatitude, is below split ahead of the others. Returns the index
+	//       of the first of the others.
+	private int partition(int start, int end, boolean byLatitude, float split) {
+		float[] key = byLatitude ? records.realLatitude : records.longitude;
+		int low = start, high = end - 1;
+		while (low <= high) {
+			if (key[low] < split) {
+				low++;
+			} else {
+				swap(low, high);
+				high--;
+			}
+		}
+		return low;
+	}
+
+	private void swap(int i, int j) {
+		int population = records.population[i];
+		records.population[i] = records.population[j];
+		records.population[j] = population;
+		float latitude = records.realLatitude[i];
+		records.realLatitude[i] = records.realLatitude[j];
+		records.realLatitude[j] = latitude;
+		float longitude = records.longitude[i];
+		records.longitude[i] = records.longitude[j];
+		records.longitude[j] = longitude;
+	}
+
+	// Pre: min < max
+	// Post: returns where to split [min, max] in two, so that each side has part of it
+	private static float middle(float min, float max) {
+		float middle = min + (max - min) / 2;
+		return (middle <= min) ? max : middle; // min and max are neighbouring floats
+	}
+
+	/*
+	 * Builds the node of the records from start (inclusive) to end (exclusive), which is
+	 * never empty, and the nodes below it.
+	 */
+	@SuppressWarnings("serial")
+	private class Build extends RecursiveTask<Node> {
+		private int start, end;
+
+		public Build(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Node compute() {
+			Node node = new Node();
+			node.start = start;
+			node.end = end;
+			node.minLon = node.maxLon = records.longitude[start];
+			node.minLat = node.maxLat = records.realLatitude[start];
+			for (int i = start; i < end; i++) {
+				node.population += records.population[i];
+				node.minLon = Math.min(node.minLon, records.longitude[i]);
+				node.maxLon = Math.max(node.maxLon, records.longitude[i]);
+				node.minLat = Math.min(node.minLat, records.realLatitude[i]);
+				node.maxLat = Math.max(node.maxLat, records.realLatitude[i]);
+			}
+			boolean splitsLon = node.minLon < node.maxLon;
+			boolean splitsLat = node.minLat < node.maxLat;
+			if ((end - start <= maxRecords && node.population <= maxPopulation) || !(splitsLon || splitsLat)) {
+				return node; // a leaf, small enough or all at one point
+			}
+			PopulationQuery.checkCancelled();
+
+			// south and north halves, then west and east quarters of each
+			int[] bounds = new int[5];
+			bounds[0] = start;
+			bounds[4] = end;
+			bounds[2] = splitsLat ? partition(start, end, true, middle(node.minLat, node.maxLat)) : end;
+			float lonSplit = splitsLon ? middle(node.minLon, node.maxLon) : Float.POSITIVE_INFINITY;
+			bounds[1] = partition(start, bounds[2], false, lonSplit);
+			bounds[3] = partition(bounds[2], end, false, lonSplit);
+
+			Build[] builds = new Build[4];
+			int children = 0;
+			for (int q = 0; q < 4; q++) {
+				if (bounds[q] < bounds[q + 1]) {
+					builds[children++] = new Build(bounds[q], bounds[q + 1]);
+				}
+			}
+			node.children = new Node[children];
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (int c = 0; c < children; c++) {
+					node.children[c] = builds[c].compute();
+				}
+			} else {
+				for (int c = 1; c < children; c++) {
+					builds[c].fork();
+				}
+				node.children[0] = builds[0].compute();
+				for (int c = 1; c < children; c++) {
+					node.children[c] = builds[c].join();
+				}
+			}
+			return node;
+		}
+	}
+}
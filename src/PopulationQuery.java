@@ -1,12 +1,13 @@
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * Christopher Blappert and Michael Mitasev
@@ -30,16 +31,51 @@ public class PopulationQuery {
 	// stores each time it is run. These are necessary to 
 	// allow singleInteraction to work with different versions
 	public static ForkJoinPool fjPool;
+	// Parallelism of the pool preprocess makes, which the -verify mode varies
+	public static int threads = Runtime.getRuntime().availableProcessors();
 	public static int instanceVersion;
 	public static int gridColumns;
 	public static int gridRows;
 	public static PreprocessResult preData;
-	public static CensusData cenData;
-	public static int[][] populationGrid;
+	public static CensusColumns cenColumns;
+	public static LongGrid populationGrid;
+	public static GridPyramid gridPyramid;
+	// Sample for approximate queries of versions 1 and 2, null unless PopulationSample.isEnabled()
+	public static PopulationSample populationSample;
+	// Index of the records for polygon and radius queries, built by the first one
+	public static ShapeQuery shapeQuery;
+	// Other census files binned against shared borders for compareInteraction, null if none
+	public static CensusVintages vintages;
+	// Cache of answers and grid squares for versions 1 and 2, null unless ScanCache.CAPACITY > 0
+	public static ScanCache scanCache;
+	// Quadtree answering versions 1 and 2, null unless PopulationQuadtree.isEnabled()
+	public static PopulationQuadtree quadtree;
+	// Packed records of versions 1 and 2, kept instead of cenColumns, null unless CompressedColumns.ENABLED
+	public static CompressedColumns compressed;
+	// Merging of co-located records into cenColumns, null unless RecordCompaction.ENABLED
+	public static RecordCompaction compaction;
+	// Set by the GUI to follow and cancel preprocessing, null otherwise
+	public static volatile PreprocessMonitor monitor;
+	// Number of lines or records processed between progress reports
+	public static final int PROGRESS_INTERVAL = 4096;
+	// Number of records scanInteraction scans between checks for cancellation
+	public static final int SCAN_BLOCK_SIZE = 1 << 16;
+	// File to keep the grid of the grid-based versions in, from the pq.gridfile property,
+	// for grids too big for the heap. null keeps the grid on the heap.
+	public static final String GRID_FILE = System.getProperty("pq.gridfile");
+	// Comma-separated census files the console compares every query against, from the
+	// pq.compare property. null compares nothing.
+	public static final String COMPARE_FILES = System.getProperty("pq.compare");
+	
+	// Fewest bytes a line of the census files takes, for sizing CensusData up front
+	private static final int BYTES_PER_RECORD_ESTIMATE = 32;
+	
+	public static final String QUERY_PROMPT = "Please give west, south, east, north coordinates of your query rectangle:";
 
 	// parse the input file into a large array held in a CensusData object
 	public static CensusData parse(String filename) {
-		CensusData result = new CensusData();
+		// sized from the file so the directory of chunks never has to grow
+		CensusData result = new CensusData(new File(filename).length() / BYTES_PER_RECORD_ESTIMATE);
 
 		try {
 			@SuppressWarnings("resource")
@@ -55,9 +91,19 @@ public class PopulationQuery {
 			// to process the real data as provided by the government)
 
 			String oneLine = fileIn.readLine(); // skip the first line
+			if(monitor != null) {
+				monitor.startParse(new File(filename).length());
+			}
+			long bytesRead = (oneLine == null) ? 0 : oneLine.length() + 1;
+			int linesRead = 0;
 
 			// read each subsequent line and add relevant data to a big array
 			while ((oneLine = fileIn.readLine()) != null) {
+				bytesRead += oneLine.length() + 1;
+				if(monitor != null && ++linesRead % PROGRESS_INTERVAL == 0) {
+					monitor.checkCancelled();
+					monitor.parsed(bytesRead);
+				}
 				String[] tokens = oneLine.split(",");
 				if(tokens.length != TOKENS_PER_LINE)
 					throw new NumberFormatException();
@@ -83,7 +129,9 @@ public class PopulationQuery {
 	// argument 1: file name for input data: pass this to parse
 	// argument 2: number of x-dimension buckets
 	// argument 3: number of y-dimension buckets
-	// argument 4: -v1, -v2, -v3, -v4, or -v5
+	// argument 4: -v1, -v2, -v3, -v4, or -v5, or -verify to check every version against the others
+	// arguments 5 and 6 (optional): query file and output file for batch mode, or with -verify
+	//                               the number of random queries and the most threads to use
 	/*
 	 * Pre: arguments are valid
 	 * Post: preprocesses the file according to the version, then prompts the user
@@ -92,60 +140,110 @@ public class PopulationQuery {
 	 *       numbers are invalid. Exits if given any input that is not 4 integers separated
 	 *       by spaces. 
 	 */
-	@SuppressWarnings("resource") // necessary for use in testing
 	public static void main(String[] args) {
 		String filename = args[0];
 		// Initialize fields that are used throughout the program
 		int columns = Integer.parseInt(args[1]);
 		int rows = Integer.parseInt(args[2]);
+		if(args[3].equals("-verify")) {
+			int queries = (args.length > 4) ? Integer.parseInt(args[4]) : VersionCheck.DEFAULT_QUERIES;
+			int maxThreads = (args.length > 5) ? Integer.parseInt(args[5]) : threads;
+			int mismatches = VersionCheck.run(filename, columns, rows, queries, maxThreads, System.out);
+			System.exit((mismatches == 0) ? 0 : 1);
+		}
 		int version = Integer.parseInt(args[3].substring(2));
 		
-		// For testing purposes, we add an extra mode with files for input and output 
+		// For testing purposes, we add an extra mode with files for input and output.
+		// Query files can have millions of lines, so they are answered by the batch runner
 		boolean isTestMode = args.length == 6;
-		Scanner console = new Scanner(System.in);
-		PrintStream output = System.out;
-		if(isTestMode) {
-			try {
-				console = new Scanner(new File(args[4]));
-				output = new PrintStream(new File(args[5]));
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			}
-		}
 		
 		// Preprocess the file's data into easily queryable data
 		// uses the same preprocessing method as the GUI for convenience
 		preprocess(filename, columns, rows, version);
+		if(compaction != null) {
+			System.err.println(compaction);
+		}
+		if(compressed != null) {
+			System.err.println(compressed);
+		}
+		if(COMPARE_FILES != null) {
+			preprocessVintages((filename + "," + COMPARE_FILES).split(","));
+		}
+		if(GridExport.FILE != null) {
+			try {
+				exportGrid(GridExport.FILE, GridExport.BINARY);
+			} catch(IOException ioe) {
+				System.err.println("Error opening/reading/writing input or output file.");
+				System.exit(1);
+			}
+		}
+		
+		if(isTestMode) {
+			try {
+				BatchQueryRunner.run(args[4], args[5]);
+			} catch(IOException ioe) {
+				System.err.println("Error opening/reading/writing input or output file.");
+				System.exit(1);
+			}
+			return;
+		}
 		
 		// Process user input
+		Scanner console = new Scanner(System.in);
+		PrintStream output = System.out;
 		boolean hasQuery = true;
 		while(hasQuery) {
-			output.println("Please give west, south, east, north coordinates of your query rectangle:");
+			output.println(QUERY_PROMPT);
 			int[] coords = new int[4];
-			String input = "";
 			if(console.hasNextLine()) {
 				// Scan the line the user entered for the coordinates
-				input = console.nextLine();
-				Scanner lineScan = new Scanner(input);
-				int i = 0;
-				while(lineScan.hasNextInt() && i < coords.length) {
-					coords[i] = lineScan.nextInt();
-					i++;
-				}
-				hasQuery = (i == coords.length) && !lineScan.hasNext();
+				hasQuery = parseQueryLine(console.nextLine(), coords);
 				// means their input was 4 integers 
-				if(hasQuery) { 
+				if(hasQuery && isApproximateOnly()) {
+					PopulationSample.Estimate estimate = approximateInteraction(coords[0], coords[1], coords[2], coords[3]);
+					output.println("approximate population of rectangle: " + estimate.population
+							+ " (95% confidence " + estimate.low + " to " + estimate.high + ")");
+					output.println("approximate percent of total population: " + estimate.percent
+							+ " (95% confidence " + estimate.lowPercent + " to " + estimate.highPercent + ")");
+				} else if(hasQuery) { 
 					Pair<Integer, Float> queryAnswer = singleInteraction(coords[0], coords[1], coords[2], coords[3]);
 					output.println("population of rectangle: " + queryAnswer.getElementA());
 					output.println("percent of total population: " + queryAnswer.getElementB());
+					if(populationSample != null) {
+						PopulationSample.Estimate estimate = approximateInteraction(coords[0], coords[1], coords[2], coords[3]);
+						output.println("approximate percent: " + estimate.percent + " (95% confidence "
+								+ estimate.lowPercent + " to " + estimate.highPercent + ")");
+					}
+					if(vintages != null) {
+						CensusVintages.Comparison comparison = compareInteraction(coords[0], coords[1], coords[2], coords[3]);
+						for(int i = 0; i < vintages.getFiles(); i++) {
+							output.println(vintages.getFilename(i) + ": " + comparison.population[i] + " ("
+									+ comparison.percent[i] + "%), change " + comparison.change[i] + " ("
+									+ comparison.percentChange[i] + "%)");
+						}
+					}
 				}
-				lineScan.close();
 			} else {
 				hasQuery = false;
 			}	
 		}
 		console.close();
 	}
+	
+	// Pre: coords has room for 4 integers
+	// Post: scans the line for the west, south, east, north coordinates of a query, storing
+	//       them in coords. Returns true only if the line was exactly 4 integers.
+	public static boolean parseQueryLine(String input, int[] coords) {
+		Scanner lineScan = new Scanner(input);
+		int i = 0;
+		while(lineScan.hasNextInt() && i < 4) {
+			coords[i] = lineScan.nextInt();
+			i++;
+		}
+		boolean isQuery = (i == 4) && !lineScan.hasNext();
+		lineScan.close();
+		return isQuery;
+	}
 
 	// Pre: filename valid, columns and rows nonnegative, version between 1 and 5.
 	// Post: Processes the input from the specified file, using the specified number of rows and columns,
@@ -155,20 +253,171 @@ public class PopulationQuery {
 		gridColumns = columns;
 		gridRows = rows;
 		instanceVersion = version;
-		fjPool = new ForkJoinPool();
+		// cleared first so that a cancelled preprocess never leaves another version's data behind
+		preData = null;
+		cenColumns = null; // and so the old records are not held while the new ones are parsed
+		populationGrid = null;
+		gridPyramid = null;
+		populationSample = null;
+		shapeQuery = null;
+		vintages = null;
+		scanCache = null;
+		compaction = null;
+		quadtree = null;
+		compressed = null;
+		fjPool = new ForkJoinPool(threads);
+		checkCancelled();
 		switch(version) {
 		case 1: preData = findCornersPopSeq(filename); break;
 		case 2: preData = findCornersPopPara(filename); break;
-		case 3: Pair<PreprocessResult, int[][]> tempPreResThree = preprocessGridSeq(filename);
+		case 3: Pair<PreprocessResult, LongGrid> tempPreResThree = StreamingPreprocess.ENABLED ?
+				preprocessStreaming(filename, null) : preprocessGridSeq(filename);
 		preData = tempPreResThree.getElementA();
 		populationGrid = tempPreResThree.getElementB(); break;
-		case 4: Pair<PreprocessResult, int[][]> tempPreResFour = preprocessGridPara(filename);
+		case 4: Pair<PreprocessResult, LongGrid> tempPreResFour = (ShardedPreprocess.SHARDS > 0) ?
+				preprocessSharded(filename) : StreamingPreprocess.ENABLED ?
+				preprocessStreaming(filename, fjPool) : preprocessGridPara(filename);
 		preData = tempPreResFour.getElementA();
 		populationGrid = tempPreResFour.getElementB(); break;
-		case 5: Pair<PreprocessResult, int[][]> tempPreResFive = preprocessGridLock(filename); 
+		case 5: Pair<PreprocessResult, LongGrid> tempPreResFive = preprocessGridLock(filename); 
 		preData = tempPreResFive.getElementA();
 		populationGrid = tempPreResFive.getElementB(); break;
 		}
+		if(version <= 2 && cenColumns != null && PopulationQuadtree.isEnabled()) {
+			quadtree = new PopulationQuadtree(cenColumns, PopulationQuadtree.MAX_RECORDS,
+					PopulationQuadtree.MAX_POPULATION, fjPool);
+		}
+		if(version <= 2 && cenColumns != null && ScanCache.CAPACITY > 0) {
+			scanCache = new ScanCache(cenColumns, preData, columns, rows, ScanCache.CAPACITY);
+		}
+		if(version <= 2 && cenColumns != null && PopulationSample.isEnabled()) {
+			populationSample = PopulationSample.build(cenColumns, preData.totPop);
+		}
+		if(monitor != null) {
+			monitor.finish();
+		}
+	}
+
+	// Post: throws CancellationException if the monitor has been cancelled
+	static void checkCancelled() {
+		if(monitor != null) {
+			monitor.checkCancelled();
+		}
+	}
+
+	// Post: tells the monitor, if there is one, that binning of the given number of records has started
+	static void reportBinningStart(int records) {
+		if(monitor != null) {
+			monitor.startBinning(records);
+		}
+	}
+
+	// Post: tells the monitor, if there is one, that the given number of records were binned
+	static void reportBinned(int records) {
+		if(monitor != null) {
+			monitor.binned(records);
+		}
+	}
+
+	// Pre: preprocess has been called
+	// Post: builds the pyramid of grids that regrid serves other grid sizes from. Only the
+	//       grid-based versions [version 3, 4, 5] need one, and there is none when they
+	//       streamed the file, since the records are gone.
+	public static void buildPyramid() {
+		gridPyramid = null;
+		if(instanceVersion >= 3 && cenColumns != null) {
+			gridPyramid = new GridPyramid(preData, cenColumns, GridPyramid.DEFAULT_BASE_COLUMNS,
+					GridPyramid.DEFAULT_BASE_ROWS, fjPool);
+		}
+	}
+
+	// Post: returns true if the data for the given version is preprocessed and ready for regrid
+	public static boolean isPreprocessed(int version) {
+		return preData != null && instanceVersion == version && (version < 3 || gridPyramid != null);
+	}
+
+	// Pre: preprocess has been called, columns and rows positive
+	// Post: switches queries to a grid of the given size without preprocessing the file again.
+	//       Versions 1 and 2 work out the grid at query time. The grid-based versions read the
+	//       new grid off gridPyramid when its sizes divide one of its levels, and otherwise bin
+	//       the records again, so the answers are the same as preprocessing for that size.
+	//       Everything is built before any of it is switched, so a regrid that is cancelled
+	//       part way leaves the old grid and its size in place together.
+	public static void regrid(int columns, int rows) {
+		LongGrid grid = populationGrid;
+		ScanCache cache = scanCache;
+		if(instanceVersion >= 3) {
+			if(columns <= GridPyramid.DEFAULT_BASE_COLUMNS && rows <= GridPyramid.DEFAULT_BASE_ROWS
+					&& gridPyramid.isExact(columns, rows)) {
+				grid = gridPyramid.resample(columns, rows, fjPool);
+			} else {
+				grid = rebin(columns, rows);
+			}
+		} else if(scanCache != null) {
+			cache = new ScanCache(cenColumns, preData, columns, rows, ScanCache.CAPACITY);
+		}
+		populationGrid = grid;
+		scanCache = cache;
+		gridColumns = columns;
+		gridRows = rows;
+	}
+
+	// Pre: preprocess has been called with a grid-based version that kept its records,
+	//      columns and rows positive
+	// Post: returns the grid of sums of columns by rows, binned from cenColumns the way
+	//       preprocessGridPara bins them
+	private static LongGrid rebin(int columns, int rows) {
+		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
+		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
+		GridInfo ginfo = new GridInfo(columns, rows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+		reportBinningStart(cenColumns.size);
+		LongGrid populationGrid = newPopulationGrid(columns, rows);
+		buildGridParallel(cenColumns, ginfo, populationGrid, fjPool);
+		populationGrid.toSums(fjPool);
+		return populationGrid;
+	}
+
+	// Pre: preprocess has been called
+	// Post: returns the population of every square of the current grid. The grid-based versions
+	//       [version 3, 4, 5] read it off populationGrid, versions 1 and 2 bin the census data,
+	//       which projects it the first time.
+	public static int[][] getCellPopulations() {
+		if(instanceVersion >= 3) {
+			int[][] cells = new int[gridColumns][gridRows];
+			fjPool.invoke(new ParallelUnsumGrid(populationGrid, cells, 0, gridColumns));
+			return cells;
+		}
+		return binCells().toArray();
+	}
+
+	// Pre: preprocess has been called with version 1 or 2
+	// Post: bins the census data into a new grid of the population of every square of the
+	//       current grid, which projects it the first time
+	private static LongGrid binCells() {
+		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / gridRows);
+		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / gridColumns);
+		GridInfo ginfo = new GridInfo(gridColumns, gridRows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+		LongGrid cells = new LongGrid(gridColumns, gridRows);
+		if(compressed != null) {
+			compressed.bin(ginfo, cells, fjPool);
+			return cells;
+		}
+		cenColumns.project(fjPool);
+		buildGridParallel(cenColumns, ginfo, cells, fjPool);
+		return cells;
+	}
+
+	// Pre: preprocess has been called, filename can be written
+	// Post: writes the population and percentage of every square of the current grid to
+	//       filename, see GridExport. The grid-based versions write populationGrid, versions 1
+	//       and 2 bin the census data into a grid of sums first.
+	public static void exportGrid(String filename, boolean binary) throws IOException {
+		LongGrid sums = populationGrid;
+		if(instanceVersion < 3) {
+			sums = binCells();
+			sums.toSums(fjPool);
+		}
+		GridExport.write(sums, preData.totPop, filename, binary, fjPool);
 	}
 
 	// Pre: coordinates entered valid, else throws IllegalArgumentException
@@ -176,10 +425,19 @@ public class PopulationQuery {
 	//       based on the version being used by the rest of the program.
 	public static Pair<Integer, Float> singleInteraction(int w, int s, int e,
 			int n) {
-		if(w < 1 || s < 1 || e > gridColumns || n > gridRows || 
-				e < w || n < s) { // coordinate was invalid
+		if(!isValidQuery(w, s, e, n)) { // coordinate was invalid
 			throw new IllegalArgumentException();
 		}
+		if(quadtree != null) {
+			int population = (int) quadtree.population(queryBounds(preData, gridRows, gridColumns, w, s, e, n));
+			float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData.totPop)) / 100.0);
+			return new Pair<Integer, Float>(population, percentPop);
+		}
+		if(scanCache != null) {
+			int population = scanCache.population(w, s, e, n, (instanceVersion == 2) ? fjPool : null);
+			float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData.totPop)) / 100.0);
+			return new Pair<Integer, Float>(population, percentPop);
+		}
 		switch(instanceVersion) {
 		case 1: return getPopulationSimpleSequential(preData, w, s, e, n);
 		case 2: return getPopulationSimplePara(preData, w, s, e, n);
@@ -188,25 +446,154 @@ public class PopulationQuery {
 		return null;
 	}
 
+	// Post: returns true if queries from the console and the GUI's live readout are to be
+	//       answered by approximateInteraction alone, see PopulationSample
+	public static boolean isApproximateOnly() {
+		return populationSample != null && PopulationSample.APPROXIMATE_ONLY;
+	}
+
+	// Pre: coordinates entered valid, else throws IllegalArgumentException. populationSample
+	//      has been built.
+	// Post: estimates the population of the specified rectangle of grid squares from the sample,
+	//       with a 95% confidence interval, much faster than singleInteraction for versions 1 and 2
+	public static PopulationSample.Estimate approximateInteraction(int w, int s, int e, int n) {
+		if(!isValidQuery(w, s, e, n)) {
+			throw new IllegalArgumentException();
+		}
+		return populationSample.estimate(queryBounds(preData, gridRows, gridColumns, w, s, e, n));
+	}
+
+	// Pre: a grid-based version [version 3, 4, 5] is preprocessed, 1 <= width <= gridColumns,
+	//      1 <= height <= gridRows, k >= 0, else throws IllegalArgumentException
+	// Post: returns the k most populous windows of width by height grid squares that do not
+	//       overlap, most populous first
+	public static List<DensestWindows.Window> topWindows(int width, int height, int k) {
+		if(populationGrid == null) {
+			throw new IllegalArgumentException("no grid of sums for version " + instanceVersion);
+		}
+		return DensestWindows.topWindows(populationGrid, width, height, k, fjPool);
+	}
+
+	// Pre: a grid-based version [version 3, 4, 5] is preprocessed, else throws
+	//      IllegalArgumentException
+	// Post: returns the rectangle of grid squares of any size with the most people above
+	//       threshold people per square, or null if no square has more than threshold
+	public static DensestWindows.Window densestRegion(long threshold) {
+		if(populationGrid == null) {
+			throw new IllegalArgumentException("no grid of sums for version " + instanceVersion);
+		}
+		return DensestWindows.densestRegion(populationGrid, threshold, fjPool);
+	}
+
+	// Pre: preprocess has been called, the census data is in memory (not streamed or sharded),
+	//      else throws IllegalArgumentException. every size is {columns, rows}, both positive.
+	// Post: returns a grid of sums of every size over the current borders, all built in one
+	//       pass over the records, without preprocessing again
+	public static MultiGridBuild.Grid[] buildGrids(int[][] sizes) {
+		if(cenColumns == null) {
+			throw new IllegalArgumentException("no census data in memory to build grids from");
+		}
+		cenColumns.project(fjPool);
+		return MultiGridBuild.build(cenColumns, preData, sizes, fjPool);
+	}
+
+	// Pre: preprocess has been called, every file is valid and readable, the first is the file
+	//      preprocess was called with
+	// Post: bins every file into a grid the size of the current one, over the borders of all
+	//       of them, for compareInteraction. The first file is the baseline, and its records
+	//       are reused rather than parsed again unless they were not kept. Queries then use
+	//       the borders of all the files too, so the baseline always answers as they do.
+	public static void preprocessVintages(String[] filenames) {
+		CensusColumns baseline = null;
+		if(cenColumns != null && cenColumns.size > 0) {
+			// the quantized coordinates only fit this file's borders, so the view leaves them out
+			baseline = new CensusColumns(cenColumns.population, cenColumns.realLatitude,
+					cenColumns.longitude, cenColumns.size);
+			baseline.latitude = cenColumns.latitude;
+		}
+		vintages = new CensusVintages(filenames, baseline, gridColumns, gridRows, fjPool);
+		PreprocessResult borders = vintages.getBorders(0);
+		if(borders.lowLat != preData.lowLat || borders.highLat != preData.highLat
+				|| borders.lowLon != preData.lowLon || borders.highLon != preData.highLon) {
+			moveBorders(borders, vintages.getGrid(0));
+		}
+	}
+
+	// Pre: borders are around every record of the preprocessed file, with projected latitudes
+	//      and its total population, grid is its grid of sums of the current size over them
+	// Post: makes queries use the given borders, as if preprocess had found them, rebuilding
+	//       whatever was worked out from the old ones
+	private static void moveBorders(PreprocessResult borders, LongGrid grid) {
+		preData = borders;
+		shapeQuery = null; // built again on the next shape query
+		if(instanceVersion >= 3) {
+			populationGrid = grid;
+		}
+		if(cenColumns != null && cenColumns.quantized != null) {
+			cenColumns.quantized = new QuantizedCoordinates(cenColumns, preData, QuantizedCoordinates.BITS, fjPool);
+		}
+		if(scanCache != null) {
+			scanCache = new ScanCache(cenColumns, preData, gridColumns, gridRows, ScanCache.CAPACITY);
+		}
+		if(gridPyramid != null) {
+			buildPyramid();
+		}
+	}
+
+	// Pre: preprocessVintages has been called, query is valid for its grids, else throws
+	//      IllegalArgumentException
+	// Post: returns the population of the rectangle in every file, with the absolute and
+	//       percentage change from the first, one lookup per file
+	public static CensusVintages.Comparison compareInteraction(int w, int s, int e, int n) {
+		if(vintages == null) {
+			throw new IllegalArgumentException("no files to compare");
+		}
+		return vintages.compare(w, s, e, n);
+	}
+
+	// Pre: preprocess has been called, the census data is in memory (not streamed or sharded),
+	//      else throws IllegalArgumentException. lons and lats are the vertices of a polygon in
+	//      order, longitudes and real latitudes in degrees.
+	// Post: returns the population inside the polygon and its % of the us population
+	public static Pair<Integer, Float> polygonInteraction(float[] lons, float[] lats) {
+		return shapeInteraction(new ShapeQuery.Polygon(lons, lats));
+	}
+
+	// Pre: preprocess has been called, the census data is in memory (not streamed or sharded),
+	//      else throws IllegalArgumentException. radiusKm not negative.
+	// Post: returns the population within radiusKm kilometers, along the earth's surface, of
+	//       the given longitude and real latitude, and its % of the us population
+	public static Pair<Integer, Float> radiusInteraction(float lon, float lat, double radiusKm) {
+		return shapeInteraction(new ShapeQuery.Circle(lon, lat, radiusKm));
+	}
+
+	private static Pair<Integer, Float> shapeInteraction(ShapeQuery.Shape shape) {
+		if(cenColumns == null) {
+			throw new IllegalArgumentException("no census data in memory for shape queries");
+		}
+		if(shapeQuery == null) {
+			shapeQuery = new ShapeQuery(cenColumns, preData, fjPool);
+		}
+		int population = (int) shapeQuery.population(shape, fjPool);
+		float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData.totPop)) / 100.0);
+		return new Pair<Integer, Float>(population, percentPop);
+	}
+
+	// Post: returns true if the query lies inside the current grid and is not inverted
+	public static boolean isValidQuery(int w, int s, int e, int n) {
+		return w >= 1 && s >= 1 && e <= gridColumns && n <= gridRows && e >= w && n >= s;
+	}
+
 	// Pre: filename is valid, file in readable location
 	// Post: simple sequential preprocessing [version 1], returns the 
 	// 		 total population and the borders of the map.
 	private static PreprocessResult findCornersPopSeq(String filename) {
-		cenData = parse(filename);
-		PreprocessResult result = new PreprocessResult();
-		result.highLat = cenData.data[0].latitude;
-		result.lowLat = result.highLat;
-		result.highLon = cenData.data[0].longitude;
-		result.lowLon = result.highLon;
-		result.totPop = 0;
-		for (int i = 0; i < cenData.data_size; i++) {
-			CensusGroup group = cenData.data[i];
-			result.totPop += group.population;
-			result.highLat = Math.max(result.highLat, group.latitude);
-			result.lowLat = Math.min(result.lowLat, group.latitude);
-			result.highLon = Math.max(result.highLon, group.longitude);
-			result.lowLon = Math.min(result.lowLon, group.longitude);
-		}
+		// the parsed chunks are dropped once copied, so the records are only held once
+		cenColumns = new CensusColumns(parse(filename));
+		compactRecords();
+		PreprocessResult result = CoordinateKernels.INSTANCE.findCornersPop(cenColumns, 0, cenColumns.size);
+		orderRecords(result);
+		projectCorners(result);
 		return result;
 	}
 		
@@ -214,69 +601,183 @@ public class PopulationQuery {
 	// Post: simple parallel preprocessing [version 2], uses fork-join parallelism
 	//       returns the total population and the borders of the map.
 	private static PreprocessResult findCornersPopPara(String filename) {
-		cenData = parse(filename);
-		FindCornersPopParalell process = new FindCornersPopParalell(cenData, 0, cenData.data_size);
+		cenColumns = new CensusColumns(parse(filename), fjPool);
+		compactRecords();
+		FindCornersPopParalell process = new FindCornersPopParalell(cenColumns, 0, cenColumns.size);
 		PreprocessResult result = fjPool.invoke(process);
+		orderRecords(result);
+		projectCorners(result);
 		return result;
 	}
 
+	// Post: merges the co-located records of cenColumns if the pq.compact property asks for it.
+	//       cenColumns then has fewer records than the file.
+	private static void compactRecords() {
+		if(RecordCompaction.ENABLED) {
+			compaction = new RecordCompaction(cenColumns, fjPool);
+			cenColumns = compaction.getColumns();
+		}
+	}
+
+	// Pre: corners are the borders of cenColumns, with real latitudes
+	// Post: packs cenColumns in Hilbert order into compressed, keeping only the packed records,
+	//       if versions 1 and 2 are to pack them. Otherwise puts cenColumns in Hilbert order
+	//       with zone maps if the pq.hilbert property asks for it. Either is done before
+	//       anything is worked out from the order of the records.
+	private static void orderRecords(PreprocessResult corners) {
+		if(cenColumns.size == 0) {
+			return;
+		}
+		if(CompressedColumns.ENABLED && instanceVersion <= 2) {
+			// packed records take far fewer bits in Hilbert order
+			int[] order = HilbertOrder.order(cenColumns, corners, fjPool);
+			compressed = new CompressedColumns(cenColumns, order, fjPool);
+			cenColumns = null; // only the packed records are kept
+		} else if(HilbertOrder.BLOCK_SIZE > 0) {
+			cenColumns = HilbertOrder.reorder(cenColumns, corners, HilbertOrder.BLOCK_SIZE, fjPool);
+		}
+	}
+
+	// Post: projects the northern and southern borders found from the real latitudes. The
+	//       projection never decreases, so they are the borders of the projected map.
+	private static void projectCorners(PreprocessResult result) {
+		result.highLat = Mercator.projectLatitude(result.highLat);
+		result.lowLat = Mercator.projectLatitude(result.lowLat);
+	}
+
 	// Pre: filename is valid, file is in readable location
 	// Post: grid-based sequential preprocessing [verison 3] 
 	// 		 returns the corners of the map, the total population
 	// 		 and the grid created that makes queries efficient
-	private static Pair<PreprocessResult, int[][]> preprocessGridSeq(String filename) {
+	private static Pair<PreprocessResult, LongGrid> preprocessGridSeq(String filename) {
 		PreprocessResult preData = findCornersPopPara(filename);
 		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / gridRows);
 		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / gridColumns);
-		int[][] populationGrid = new int[gridColumns][gridRows];
-		for (int i = 0; i < cenData.data_size; i++) {
-			CensusGroup censusBlock = cenData.data[i];
-			int x = (int) Math.floor((censusBlock.longitude - preData.lowLon)/lonGridSize);
-			int y = (int) Math.floor((censusBlock.latitude - preData.lowLat)/latGridSize);
-			if (x == gridColumns) {
-				x--; //So the eastmost location gets added to the grid
+		LongGrid populationGrid = newPopulationGrid();
+		GridInfo ginfo = new GridInfo(gridColumns, gridRows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+		prepareForBinning(preData);
+		QuantizedCoordinates quantized = cenColumns.quantized;
+		reportBinningStart(cenColumns.size);
+		for (int i = 0; i < cenColumns.size; i++) {
+			if (monitor != null && (i + 1) % PROGRESS_INTERVAL == 0) {
+				checkCancelled();
+				reportBinned(PROGRESS_INTERVAL);
 			}
-			if (y == gridRows) {
-				y--; //So the northernmost location gets added to the grid
+			int x, y;
+			if (quantized != null) {
+				x = quantized.column(i, ginfo);
+				y = quantized.row(i, ginfo);
+			} else {
+				x = (int) Math.floor((cenColumns.longitude[i] - preData.lowLon)/lonGridSize);
+				y = (int) Math.floor((cenColumns.latitude[i] - preData.lowLat)/latGridSize);
+				if (x == gridColumns) {
+					x--; //So the eastmost location gets added to the grid
+				}
+				if (y == gridRows) {
+					y--; //So the northernmost location gets added to the grid
+				}
 			}
-			populationGrid[x][y] += censusBlock.population;
+			populationGrid.add(x, y, cenColumns.population[i]);
 		}
 
-		updateGridToSum(populationGrid);
-		return new Pair<PreprocessResult, int[][]>(preData, populationGrid);
+		populationGrid.toSums();
+		return new Pair<PreprocessResult, LongGrid>(preData, populationGrid);
 	}
 	
+	// Pre: filename is valid, file is in readable location
+	// Post: grid-based preprocessing [version 3, or 4 if fjPool is not null] that streams the
+	//       file instead of keeping its records, so there is no CensusData afterwards
+	private static Pair<PreprocessResult, LongGrid> preprocessStreaming(String filename, ForkJoinPool fjPool) {
+		cenColumns = null;
+		return StreamingPreprocess.preprocess(filename, gridColumns, gridRows, fjPool);
+	}
+
+	// Pre: filename is valid, file is in readable location
+	// Post: grid-based preprocessing [version 4] by ShardedPreprocess.SHARDS worker processes,
+	//       which like streaming leaves no CensusData afterwards
+	private static Pair<PreprocessResult, LongGrid> preprocessSharded(String filename) {
+		cenColumns = null;
+		return ShardedPreprocess.preprocess(filename, gridColumns, gridRows, ShardedPreprocess.SHARDS, fjPool);
+	}
+
 	// Pre: filename is valid, file is in readable location
 	// Post: grid-based parallel preprocessing [verison 4] using fork-join
 	//       parallelism. returns the corners of the map, the total population
 	// 		 and the grid created that makes queries efficient
-	private static Pair<PreprocessResult, int[][]> preprocessGridPara(String filename) {
+	private static Pair<PreprocessResult, LongGrid> preprocessGridPara(String filename) {
 		PreprocessResult preData = findCornersPopPara(filename);
 		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / gridRows);
 		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / gridColumns);
 		
 		GridInfo ginfo = new GridInfo(gridColumns, gridRows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
-		ParallelBuildGrid processToGrid = new ParallelBuildGrid(0, cenData.data_size - 1, ginfo, cenData, fjPool);
-		int [][] populationGrid = fjPool.invoke(processToGrid);
+		prepareForBinning(preData);
+		reportBinningStart(cenColumns.size);
+		LongGrid populationGrid = newPopulationGrid();
+		buildGridParallel(cenColumns, ginfo, populationGrid, fjPool);
 
-		updateGridToSum(populationGrid);
+		populationGrid.toSums(fjPool);
 		
-		return new Pair<PreprocessResult, int[][]>(preData, populationGrid);
+		return new Pair<PreprocessResult, LongGrid>(preData, populationGrid);
 	}
 	
+	// Pre: data has been projected and has at least one record, ginfo is a grid over its borders
+	//       populationGrid is all zeros and the size of ginfo's grid
+	// Post: fills populationGrid with the population of every square using fork-join
+	//       parallelism. Small grids are built by ParallelBuildGrid, grids with many squares for
+	//       the number of records by RadixBinGrid, which does not have to merge a grid per task.
+	static void buildGridParallel(CensusColumns data, GridInfo ginfo, LongGrid populationGrid,
+			ForkJoinPool fjPool) {
+		if(RadixBinGrid.isBetterFor(ginfo, data.size)) {
+			RadixBinGrid.build(data, ginfo, populationGrid, fjPool);
+		} else {
+			populationGrid.copyFrom(fjPool.invoke(new ParallelBuildGrid(0, data.size - 1, ginfo, data, fjPool)));
+		}
+	}
+
+	// Post: returns an empty grid of gridColumns by gridRows for the grid-based versions, in the
+	//       file named by the pq.gridfile property if there is one and on the heap otherwise
+	static LongGrid newPopulationGrid() {
+		return newPopulationGrid(gridColumns, gridRows);
+	}
+
+	// Post: returns an empty grid of columns by rows, like newPopulationGrid()
+	static LongGrid newPopulationGrid(int columns, int rows) {
+		if(GRID_FILE == null) {
+			return new LongGrid(columns, rows);
+		}
+		try {
+			return LongGrid.mapped(columns, rows, new File(GRID_FILE));
+		} catch(IOException ioe) {
+			System.err.println("Error opening/reading/writing input or output file.");
+			System.exit(1);
+			return null;
+		}
+	}
+
+	// Pre: cenColumns and preData are from the same file
+	// Post: projects cenColumns, and quantizes it if the pq.quantize property asks for it
+	private static void prepareForBinning(PreprocessResult preData) {
+		cenColumns.project(fjPool);
+		if (QuantizedCoordinates.BITS > 0) {
+			cenColumns.quantized = new QuantizedCoordinates(cenColumns, preData, QuantizedCoordinates.BITS, fjPool);
+		}
+	}
+
 	// Helper method that converts the grid that contains populations corresponding
 	// to their grid squares to the grid that contains the population of the rectangle
 	// consisting of the north-west corner of the country to the lower right corner of the
-	// grid square.
-	private static void updateGridToSum(int[][] populationGrid) {
-		for (int i = 1; i < gridColumns; i++) {
+	// grid square. The levels of GridPyramid still use it, populationGrid uses LongGrid.toSums.
+	static void updateGridToSum(int[][] populationGrid) {
+		int columns = populationGrid.length;
+		int rows = populationGrid[0].length;
+		for (int i = 1; i < columns; i++) {
 			populationGrid[i][0] += populationGrid[i-1][0]; 
 		}
-		for (int j = 1; j < gridRows; j++) {
+		for (int j = 1; j < rows; j++) {
 			populationGrid[0][j] += populationGrid[0][j-1];
 		}
-		for (int i = 1; i < gridColumns; i++) {
-			for (int j = 1; j < gridRows; j++) {
+		for (int i = 1; i < columns; i++) {
+			for (int j = 1; j < rows; j++) {
 				populationGrid[i][j] += (populationGrid[i-1][j] + populationGrid[i][j-1] - populationGrid[i-1][j-1]);
 			}
 		}
@@ -286,24 +787,29 @@ public class PopulationQuery {
 	// Post: grid-based concurrent preprocessing [verison 5] using locks and multiple
 	//       threads. returns the corners of the map, the total population
 	// 		 and the grid created that makes queries efficient
-	private static Pair<PreprocessResult, int[][]> preprocessGridLock(String filename) {
+	private static Pair<PreprocessResult, LongGrid> preprocessGridLock(String filename) {
 		PreprocessResult preData = findCornersPopPara(filename);
 		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / gridRows);
 		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / gridColumns);
 		GridInfo ginfo = new GridInfo(gridColumns, gridRows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
-		int[][] populationGrid = new int[gridColumns][gridRows];
+		int[][] cells = new int[gridColumns][gridRows];
 		Object[][] locks = new Boolean[gridColumns][gridRows]; // boolean so that they dont take up much space
 		for(int i = 0; i < locks.length; i++) {
 			for(int j = 0; j < locks[0].length; j++) {
 				locks[i][j] = false;
 			}
 		}
-		PreprocessBuildGridLock preprocessor = new PreprocessBuildGridLock(0, cenData.data_size, ginfo, cenData, populationGrid, locks);
-		populationGrid = preprocessor.calculatePopulationGrid();
-		
-		updateGridToSum(populationGrid);
+		prepareForBinning(preData);
+		reportBinningStart(cenColumns.size);
+		PreprocessBuildGridLock preprocessor = new PreprocessBuildGridLock(0, cenColumns.size, ginfo, cenColumns, cells, locks);
+		cells = preprocessor.calculatePopulationGrid();
+		checkCancelled(); // the threads stop early, rather than throw, when cancelled
+		// a lock per square already limits this version to grids that fit in arrays
+		LongGrid populationGrid = newPopulationGrid();
+		populationGrid.copyFrom(cells);
+		populationGrid.toSums();
 		
-		return new Pair<PreprocessResult, int[][]>(preData, populationGrid);
+		return new Pair<PreprocessResult, LongGrid>(preData, populationGrid);
 	}
 	
 
@@ -312,8 +818,47 @@ public class PopulationQuery {
 	//       and its % of the us population. [version 1 query]
 	private static Pair<Integer, Float> getPopulationSimpleSequential(
 			PreprocessResult preData, int w, int s, int e, int n) {
-		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / gridRows);
-		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / gridColumns);
+		int population = getPopulationSimpleSequential(preData, w, s, e, n, 0, recordCount());
+		float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData.totPop)) / 100.0);
+		return new Pair<Integer, Float>(population, percentPop);
+	}
+
+	// Pre: query given is valid
+	// Post: Sequentially calculates the population within a given range, counting only
+	//       the CensusGroups from start (inclusive) to end (exclusive)
+	private static int getPopulationSimpleSequential(
+			PreprocessResult preData, int w, int s, int e, int n, int start, int end) {
+		float[] bounds = queryBounds(preData, gridRows, gridColumns, w, s, e, n);
+		if(compressed != null) {
+			return compressed.sumInRange(start, end, bounds[0], bounds[1], bounds[2], bounds[3]);
+		}
+		return cenColumns.sumInRange(start, end, bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+
+	// Pre: query given is valid
+	// Post: calculates the population within a given range using fork-join parallelism,
+	//       counting only the CensusGroups from start (inclusive) to end (exclusive)
+	private static int getPopulationSimplePara(PreprocessResult preData, int w, int s, int e, int n,
+			int start, int end) {
+		if(compressed != null) {
+			float[] bounds = queryBounds(preData, gridRows, gridColumns, w, s, e, n);
+			return compressed.sumInRange(start, end, bounds[0], bounds[1], bounds[2], bounds[3], fjPool);
+		}
+		return fjPool.invoke(new GetPopulationParallel(cenColumns, gridRows, gridColumns, preData, w, s, e, n, start, end));
+	}
+
+	// Post: returns the number of records versions 1 and 2 scan, packed or not
+	private static int recordCount() {
+		return (compressed != null) ? compressed.size : cenColumns.size;
+	}
+
+	// Pre: query given is valid for a grid of the given rows and columns
+	// Post: returns {minLongitude, minLatitude, maxLongitude, maxLatitude} of the query, where
+	//       the latitudes are real ones: a CensusGroup is in the query exactly when its real
+	//       latitude is in [minLatitude, maxLatitude) and its longitude in [minLongitude, maxLongitude)
+	static float[] queryBounds(PreprocessResult preData, int rows, int columns, int w, int s, int e, int n) {
+		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
+		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
 		float minLatitude = preData.lowLat + latGridSize * (s - 1); //-1 to make it inclusive
 		float maxLatitude = preData.lowLat + latGridSize * n;
 		float minLongitude = preData.lowLon + lonGridSize * (w - 1); //-1 to make it inclusive
@@ -324,13 +869,29 @@ public class PopulationQuery {
 		if(maxLongitude == preData.highLon) {//To ensure eastern part of the rectangle is counted
 			maxLongitude++;
 		}
+		// the grid is in projected latitudes, so turn its edges into real ones instead of
+		// projecting every CensusGroup
+		return new float[] {minLongitude, Mercator.lowestProjectingTo(minLatitude),
+				maxLongitude, Mercator.lowestProjectingTo(maxLatitude)};
+	}
+
+	// Pre: query given is valid, version 1 or 2 preprocessed
+	// Post: answers the query like singleInteraction, but scans the CensusData a block of
+	//       SCAN_BLOCK_SIZE records at a time and gives up, returning null, once cancelled is set
+	public static Pair<Integer, Float> scanInteraction(int w, int s, int e, int n, AtomicBoolean cancelled) {
+		if(quadtree != null || scanCache != null) {
+			return singleInteraction(w, s, e, n); // most answers need no scan at all
+		}
 		int population = 0;
-		for(int i = 0; i < cenData.data_size; i++) {
-			CensusGroup censusBlock = cenData.data[i];
-			boolean isContained = (censusBlock.longitude >= minLongitude && censusBlock.latitude >= minLatitude &&
-					censusBlock.longitude < maxLongitude && censusBlock.latitude < maxLatitude);
-			if(isContained) {
-				population += censusBlock.population;
+		for(int start = 0; start < recordCount(); start += SCAN_BLOCK_SIZE) {
+			if(cancelled.get()) {
+				return null;
+			}
+			int end = Math.min(recordCount(), start + SCAN_BLOCK_SIZE);
+			if(instanceVersion == 1) {
+				population += getPopulationSimpleSequential(preData, w, s, e, n, start, end);
+			} else {
+				population += getPopulationSimplePara(preData, w, s, e, n, start, end);
 			}
 		}
 		float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData.totPop)) / 100.0);
@@ -342,9 +903,7 @@ public class PopulationQuery {
 	//       using fork-join parallelism [version 2 query]
 	private static Pair<Integer, Float> getPopulationSimplePara(PreprocessResult preData,
 			int w, int s, int e, int n) {
-		int population = -1;
-		GetPopulationParallel process = new GetPopulationParallel(cenData, gridRows, gridColumns, preData, w, s, e, n, 0, cenData.data_size);
-		population = fjPool.invoke(process);
+		int population = getPopulationSimplePara(preData, w, s, e, n, 0, recordCount());
 		float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData.totPop)) / 100.0);
 		return new Pair<Integer, Float>(population, percentPop);
 	}
@@ -354,18 +913,8 @@ public class PopulationQuery {
 	//       using the pre-computed grid of sums [version 3, 4, 5 query]
 	public static Pair<Integer, Float> getPopulationFromGrid(
 			PreprocessResult preData4, int w, int s, int e, int n) {
-		int population = populationGrid[e - 1][n - 1];
-		boolean furtherWestSquare = (w > 1);
-		boolean furtherSouthSquare = (s > 1);
-		if (furtherWestSquare) {
-			population -= populationGrid[w - 2][n - 1];
-		}
-		if (furtherSouthSquare) {
-			population -= populationGrid[e - 1][s - 2];
-		}
-		if (furtherWestSquare && furtherSouthSquare) {
-			population += populationGrid[w - 2][s - 2];
-		}
+		// no rectangle holds more than the total population, which is an int
+		int population = (int) populationGrid.population(w, s, e, n);
 		float percentPop = (float) (Math.round(100 * (float) (100.0 * population / preData4.totPop)) / 100.0);
 		return new Pair<Integer, Float>(population, percentPop);
 	}
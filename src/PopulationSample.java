@@ -0,0 +1,171 @@
+import java.util.Random;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * A small sample of the census, weighted by population, that answers any rectangle of
+ * versions 1 and 2 approximately, with a confidence interval, in time proportional to the
+ * sample instead of the whole census.
+ *
+ * The sample has two strata. Records holding at least 1/draws of the population are kept
+ * whole and counted exactly. The rest of the population is cut, in file order, into draws
+ * equal runs of people, and one person is drawn from every run at the same random offset
+ * (systematic sampling proportional to population). A record is kept with the number of
+ * people drawn from it. The file is ordered by state and county, so every run is a
+ * stratum of neighbouring records and every part of the map gets its share of draws.
+ *
+ * For a rectangle, if k of the m draws fall in it, the estimate is the exact population of
+ * the whole records in it plus k/m of the rest. The interval is the 95% Wilson score
+ * interval for k/m, which treats the draws as independent. That is conservative for
+ * systematic draws over geographically ordered data, and unlike the plain normal interval
+ * it does not collapse to nothing when k is 0 or m.
+ *
+ * Built by versions 1 and 2 when one of these system properties is set:
+ *   pq.sample=draws          a sample of that many draws
+ *   pq.samplelatency=micros  as many draws as a query can scan in that many microseconds,
+ *                            measured against scans of the whole census
+ *   pq.approximate=true      answer the console and the GUI's live readout from the sample
+ *                            alone, without the exact scan, with DEFAULT_LATENCY_MICROS if
+ *                            neither of the others is set
+ */
+public class PopulationSample {
+	public static final int SIZE = Integer.getInteger("pq.sample", 0);
+	public static final int LATENCY_MICROS = Integer.getInteger("pq.samplelatency", 0);
+	public static final boolean APPROXIMATE_ONLY = Boolean.getBoolean("pq.approximate");
+	public static final int DEFAULT_LATENCY_MICROS = 1000;
+	public static final int MIN_DRAWS = 1000;
+	public static final double Z = 1.96; // 95% confidence
+	private static final int CALIBRATION_SCANS = 5;
+	private static final long SEED = 0x5EED;
+	private CensusColumns exact; // population is the real one
+	private CensusColumns sampled; // population is the number of draws
+	private int draws;
+	private long sampledPopulation;
+	private int totPop;
+
+	// Post: returns true if a sample should be built
+	public static boolean isEnabled() {
+		return SIZE > 0 || LATENCY_MICROS > 0 || APPROXIMATE_ONLY;
+	}
+
+	// Pre: data has at least one record, totPop is its total population, isEnabled()
+	// Post: builds a sample of the size asked for by the system properties
+	public static PopulationSample build(CensusColumns data, int totPop) {
+		int micros = (LATENCY_MICROS > 0) ? LATENCY_MICROS : DEFAULT_LATENCY_MICROS;
+		int draws = (SIZE > 0) ? SIZE : drawsForLatency(data, micros);
+		return new PopulationSample(data, totPop, draws, new Random(SEED));
+	}
+
+	// Post: returns how many draws a sample can have for a query to scan it in the given time,
+	//       at least MIN_DRAWS and at most one per record
+	public static int drawsForLatency(CensusColumns data, int micros) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < CALIBRATION_SCANS; i++) {
+			long start = System.nanoTime();
+			CoordinateKernels.INSTANCE.sumInRange(data, 0, data.size, -Float.MAX_VALUE,
+					-Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		double nanosPerRecord = Math.max(1, best) / (double) data.size;
+		long draws = (long) (micros * 1000.0 / nanosPerRecord);
+		return (int) Math.max(MIN_DRAWS, Math.min(data.size, draws));
+	}
+
+	// Pre: data has at least one record, totPop is its total population, draws positive
+	// Post: draws the sample using random for the offset of the draws
+	public PopulationSample(CensusColumns data, int totPop, int draws, Random random) {
+		this.totPop = totPop;
+		this.draws = draws;
+		double threshold = (double) totPop / draws; // records this big are kept whole
+		int exactCount = 0;
+		sampledPopulation = totPop;
+		for (int i = 0; i < data.size; i++) {
+			if (data.population[i] >= threshold) {
+				exactCount++;
+				sampledPopulation -= data.population[i];
+			}
+		}
+		exact = new CensusColumns(new int[exactCount], new float[exactCount], new float[exactCount], exactCount);
+
+		int[] hits = new int[Math.min(data.size, draws)];
+		float[] latitude = new float[hits.length];
+		float[] longitude = new float[hits.length];
+		int kept = 0;
+		int e = 0;
+		int drawn = 0;
+		double step = (double) sampledPopulation / draws;
+		double next = random.nextDouble() * step; // the next person drawn
+		long cumulative = 0; // people up to the end of the current record
+		for (int i = 0; i < data.size; i++) {
+			int population = data.population[i];
+			if (population >= threshold) {
+				exact.population[e] = population;
+				exact.realLatitude[e] = data.realLatitude[i];
+				exact.longitude[e] = data.longitude[i];
+				e++;
+				continue;
+			}
+			cumulative += population;
+			int count = 0;
+			while (drawn < draws && next < cumulative) {
+				count++;
+				drawn++;
+				next += step;
+			}
+			if (count > 0) {
+				hits[kept] = count;
+				latitude[kept] = data.realLatitude[i];
+				longitude[kept] = data.longitude[i];
+				kept++;
+			}
+		}
+		sampled = new CensusColumns(hits, latitude, longitude, kept);
+	}
+
+	// Post: returns the number of records the sample holds, whole or drawn from
+	public int getRecords() {
+		return exact.size + sampled.size;
+	}
+
+	// Pre: bounds are from PopulationQuery.queryBounds
+	// Post: returns the estimated population of the query and its 95% confidence interval
+	public Estimate estimate(float[] bounds) {
+		long exactPopulation = CoordinateKernels.INSTANCE.sumInRange(exact, 0, exact.size,
+				bounds[0], bounds[1], bounds[2], bounds[3]);
+		int hits = CoordinateKernels.INSTANCE.sumInRange(sampled, 0, sampled.size,
+				bounds[0], bounds[1], bounds[2], bounds[3]);
+		double p = (double) hits / draws;
+		double zz = Z * Z / draws;
+		double center = (p + zz / 2) / (1 + zz);
+		double halfWidth = Z / (1 + zz) * Math.sqrt(p * (1 - p) / draws + zz / (4.0 * draws));
+		return new Estimate(exactPopulation + p * sampledPopulation,
+				exactPopulation + Math.max(0, center - halfWidth) * sampledPopulation,
+				exactPopulation + Math.min(1, center + halfWidth) * sampledPopulation, totPop);
+	}
+
+	/*
+	 * An estimated population with its confidence interval, as people and as percentages of
+	 * the total population rounded like singleInteraction's.
+	 */
+	public static class Estimate {
+		public int population;
+		public int low;
+		public int high;
+		public float percent;
+		public float lowPercent;
+		public float highPercent;
+
+		public Estimate(double population, double low, double high, int totPop) {
+			this.population = (int) Math.round(population);
+			this.low = (int) Math.floor(low);
+			this.high = (int) Math.ceil(high);
+			percent = percentOf(this.population, totPop);
+			lowPercent = percentOf(this.low, totPop);
+			highPercent = percentOf(this.high, totPop);
+		}
+
+		private static float percentOf(int population, int totPop) {
+			return (float) (Math.round(100 * (float) (100.0 * population / totPop)) / 100.0);
+		}
+	}
+}
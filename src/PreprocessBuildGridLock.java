@@ -11,13 +11,13 @@ public class PreprocessBuildGridLock extends java.lang.Thread {
 	private int min;
 	private int max;
 	private GridInfo ginfo;
-	private CensusData cenData;
+	private CensusColumns cenData;
 	private int[][] populationGrid;
 	private Object[][] locks;
 	
-	// Pre: data not null, locks not null, populationGrid and locks have same dimension
+	// Pre: data not null and projected, locks not null, populationGrid and locks have same dimension
 	// Post: creates a new object. Processing is exclusive of max inclusive of min.
-	public PreprocessBuildGridLock(int min, int max, GridInfo info, CensusData data, int[][] populationGrid, Object[][] locks) {
+	public PreprocessBuildGridLock(int min, int max, GridInfo info, CensusColumns data, int[][] populationGrid, Object[][] locks) {
 		this.min = min;
 		this.max = max;
 		ginfo = info;
@@ -26,26 +26,37 @@ public class PreprocessBuildGridLock extends java.lang.Thread {
 		this.locks = locks;
 	}
 	
-	// Post: runs the thread on the specified range of the CensusData object to calculate the population
+	// Post: runs the thread on the specified range of the census data to calculate the population
 	// 		 of the grid squares. 
 	public void run() {
 		for (int i = min; i < max; i++) {
-			CensusGroup censusBlock = cenData.data[i];
-			int x = (int) Math.floor((censusBlock.longitude - ginfo.getMinLon())/ginfo.getLonGridSize());
-			int y = (int) Math.floor((censusBlock.latitude - ginfo.getMinLat())/ginfo.getLatGridSize());
-			if (x == ginfo.getMaxCols()) {
-				x--; //So the eastmost location gets added to the grid
+			if ((i - min + 1) % PopulationQuery.PROGRESS_INTERVAL == 0 && PopulationQuery.monitor != null) {
+				if (PopulationQuery.monitor.isCancelled()) {
+					return; // the caller checks for cancellation once every thread is done
+				}
+				PopulationQuery.reportBinned(PopulationQuery.PROGRESS_INTERVAL);
 			}
-			if (y == ginfo.getMaxRows()) {
-				y--; //So the northernmost location gets added to the grid
+			int x, y;
+			if (cenData.quantized != null) {
+				x = cenData.quantized.column(i, ginfo);
+				y = cenData.quantized.row(i, ginfo);
+			} else {
+				x = (int) Math.floor((cenData.longitude[i] - ginfo.getMinLon())/ginfo.getLonGridSize());
+				y = (int) Math.floor((cenData.latitude[i] - ginfo.getMinLat())/ginfo.getLatGridSize());
+				if (x == ginfo.getMaxCols()) {
+					x--; //So the eastmost location gets added to the grid
+				}
+				if (y == ginfo.getMaxRows()) {
+					y--; //So the northernmost location gets added to the grid
+				}
 			}
 			synchronized(locks[x][y]) { // only need to lock right before update
-				populationGrid[x][y] += censusBlock.population;
+				populationGrid[x][y] += cenData.population[i];
 			}
 		}
 	}
 	
-	// Post: Forks the initial threads that then process the CensusData object
+	// Post: Forks the initial threads that then process the census data
 	// 		 into the grid. Then returns the grid. 
 	public int[][] calculatePopulationGrid() {
 		PreprocessBuildGridLock[] threads = new PreprocessBuildGridLock[NUM_THREADS];
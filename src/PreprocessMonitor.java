@@ -0,0 +1,92 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Tracks how far a call to PopulationQuery.preprocess has got and lets another thread cancel
+ * it. Parsing the file counts for the first half of the progress and binning the records into
+ * a grid for the second half. Binning is reported from many threads at once, so the count of
+ * binned records is atomic. Subclasses hear about progress through progressed.
+ */
+public class PreprocessMonitor {
+	private volatile boolean cancelled;
+	private volatile long fileLength;
+	private volatile long bytesParsed;
+	private volatile long recordsToBin;
+	private AtomicLong recordsBinned = new AtomicLong();
+	private volatile int lastProgress = -1;
+
+	// Post: asks the preprocessing to stop at the next point it checks
+	public void cancel() {
+		cancelled = true;
+	}
+
+	// Post: returns true if cancel has been called
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// Post: throws CancellationException if cancel has been called
+	public void checkCancelled() {
+		if(cancelled) {
+			throw new CancellationException();
+		}
+	}
+
+	// Post: starts the parse phase for a file of the given length in bytes
+	public void startParse(long length) {
+		fileLength = length;
+		bytesParsed = 0;
+		update();
+	}
+
+	// Pre: only called by the parsing thread
+	// Post: records that the given number of bytes have been parsed in total
+	public void parsed(long bytes) {
+		bytesParsed = bytes;
+		update();
+	}
+
+	// Post: starts the binning phase for the given number of records
+	public void startBinning(long records) {
+		bytesParsed = fileLength;
+		recordsToBin = records;
+		recordsBinned.set(0);
+		update();
+	}
+
+	// Post: records that the given number of further records have been binned
+	public void binned(long records) {
+		recordsBinned.addAndGet(records);
+		update();
+	}
+
+	// Post: marks the preprocessing as complete
+	public void finish() {
+		bytesParsed = fileLength;
+		recordsBinned.set(recordsToBin);
+		lastProgress = -1;
+		progressed(100);
+	}
+
+	// Post: returns the progress so far as a percentage
+	public int getProgress() {
+		int parse = (fileLength == 0) ? 0 : (int) (50 * Math.min(bytesParsed, fileLength) / fileLength);
+		int bin = (recordsToBin == 0) ? 0 : (int) (50 * Math.min(recordsBinned.get(), recordsToBin) / recordsToBin);
+		return parse + bin;
+	}
+
+	// Post: called whenever the percentage changes, possibly from a worker thread. Does nothing
+	//       unless overridden.
+	protected void progressed(int percent) {
+	}
+
+	private void update() {
+		int progress = getProgress();
+		if(progress != lastProgress) {
+			lastProgress = progress;
+			progressed(progress);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The longitude and projected latitude of every record as fixed-point integers of a chosen
+ * number of bits, relative to the borders of the map: 0 is the western (southern) border
+ * and 2^bits the eastern (northern) one. 16 bits or fewer are kept in chars, more in ints,
+ * so a coordinate takes 2 or 4 bytes. The grid square of a record is then an integer
+ * multiply and shift, with no float divide, no floor and no edge fix-ups.
+ *
+ * Precision: a coordinate is only known to within one step, (border to border) / 2^bits,
+ * which is 1/65536 of the map at 16 bits and 1/16777216 at 24. The float binning the
+ * program has always used also has rounding error, up to a few float ulps. So a record
+ * close enough to a grid line could land in a different square than the float binning put
+ * it in. Those records are recognised, since their step sits within a margin of a grid line,
+ * and are binned with the float formula instead, which keeps every grid exactly the same as
+ * before. At 16 bits that is about 3 in 65536 records per grid line crossed, at 24 bits
+ * about 16 in 16777216.
+ *
+ * Enabled with the system property pq.quantize=bits, between 1 and 24.
+ */
+public class QuantizedCoordinates {
+	public static final int BITS = Integer.getInteger("pq.quantize", 0);
+	public static final int MAX_BITS = 24;
+	private static final int SEQUENTIAL_CUTOFF = 10000;
+	private CensusColumns columns;
+	private Axis longitude;
+	private Axis latitude;
+
+	// Pre: columns has been projected, preData describes it, 1 <= bits <= MAX_BITS
+	// Post: quantizes every longitude and projected latitude using fork-join parallelism
+	public QuantizedCoordinates(CensusColumns columns, PreprocessResult preData, int bits, ForkJoinPool fjPool) {
+		if (bits < 1 || bits > MAX_BITS) {
+			throw new IllegalArgumentException("pq.quantize must be between 1 and " + MAX_BITS);
+		}
+		this.columns = columns;
+		longitude = new Axis(columns.size, bits, preData.lowLon, preData.highLon);
+		latitude = new Axis(columns.size, bits, preData.lowLat, preData.highLat);
+		fjPool.invoke(new Quantize(0, columns.size));
+	}
+
+	// Pre: ginfo is a grid over the same borders this was quantized with
+	// Post: returns the column of the grid record i lies in, the same one the float binning gives
+	public int column(int i, GridInfo ginfo) {
+		int x = longitude.cell(i, ginfo.getMaxCols());
+		if (x < 0) {
+			x = (int) Math.floor((columns.longitude[i] - ginfo.getMinLon())/ginfo.getLonGridSize());
+			if (x == ginfo.getMaxCols()) {
+				x--; //So the eastmost location gets added to the grid
+			}
+		}
+		return x;
+	}
+
+	// Pre: ginfo is a grid over the same borders this was quantized with
+	// Post: returns the row of the grid record i lies in, the same one the float binning gives
+	public int row(int i, GridInfo ginfo) {
+		int y = latitude.cell(i, ginfo.getMaxRows());
+		if (y < 0) {
+			y = (int) Math.floor((columns.latitude[i] - ginfo.getMinLat())/ginfo.getLatGridSize());
+			if (y == ginfo.getMaxRows()) {
+				y--; //So the northernmost location gets added to the grid
+			}
+		}
+		return y;
+	}
+
+	// Post: returns the bytes taken by the quantized coordinates
+	public long getMemoryBytes() {
+		return longitude.getMemoryBytes() + latitude.getMemoryBytes();
+	}
+
+	/*
+	 * One coordinate of every record, quantized.
+	 */
+	private static class Axis {
+		private char[] small; // 16 bits or fewer
+		private int[] large;
+		private int bits;
+		private long mask;
+		private double low;
+		private double scale;
+		// how many steps either side of a record's step the float binning might see it at
+		private long margin;
+		// true if the borders are the same, so every record is left to the float formula
+		private boolean noWidth;
+
+		public Axis(int size, int bits, float low, float high) {
+			this.bits = bits;
+			mask = (1L << bits) - 1;
+			if (bits <= 16) {
+				small = new char[size];
+			} else {
+				large = new int[size];
+			}
+			this.low = low;
+			double range = (double) high - low;
+			if (range > 0) {
+				scale = Math.scalb(1.0, bits) / range;
+				// The float binning errs by at most a few ulps of the coordinate and of the
+				// border to border distance, under 2^-24 * (3 * range + largest magnitude).
+				double largest = Math.max(Math.abs(low), Math.abs(high));
+				margin = (long) Math.ceil(Math.scalb(3 + largest / range, bits - 24)) + 1;
+			} else {
+				noWidth = true;
+			}
+		}
+
+		public void set(int i, float value) {
+			long q = (long) (((double) value - low) * scale);
+			q = Math.max(0, Math.min(mask, q)); // the border itself goes in the last step
+			if (small != null) {
+				small[i] = (char) q;
+			} else {
+				large[i] = (int) q;
+			}
+		}
+
+		// Post: returns the cell of record i in a grid of the given number of cells, or -1
+		//       if the record is too close to a grid line to tell without the float formula
+		public int cell(int i, int cells) {
+			if (noWidth) {
+				return -1;
+			}
+			long q = (small != null) ? small[i] : large[i];
+			long product = q * cells;
+			long fraction = product & mask;
+			long guard = margin * cells;
+			if (fraction < guard || fraction > mask + 1 - guard - cells) {
+				return -1;
+			}
+			return (int) (product >>> bits);
+		}
+
+		public long getMemoryBytes() {
+			return (small != null) ? 2L * small.length : 4L * large.length;
+		}
+	}
+
+	/*
+	 * Quantizes the records from start (inclusive) to end (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private class Quantize extends RecursiveAction {
+		private int start, end;
+
+		public Quantize(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (int i = start; i < end; i++) {
+					longitude.set(i, columns.longitude[i]);
+					latitude.set(i, columns.latitude[i]);
+				}
+			} else {
+				int mid = (start + end) / 2;
+				Quantize left = new Quantize(start, mid);
+				Quantize right = new Quantize(mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Builds the grid of populations by sorting instead of merging. Every record is turned into
+ * its grid square's id packed with its population, the records are sorted by square with a
+ * parallel radix sort, and each run of one square is added up straight into the one grid.
+ * ParallelBuildGrid gives every task a grid of its own and merges them all, which is cheap
+ * for small grids but once the grid has about as many squares as there are records the
+ * merging is nearly all of the work. Here the work is a few passes over the records plus
+ * one pass over the grid, however big it is.
+ */
+public class RadixBinGrid {
+	// Bin with this engine once the grid has at least this many squares per record. Past
+	// about one square per ten records the merging of ParallelBuildGrid costs more than sorting.
+	public static final double MIN_CELLS_PER_RECORD = 0.1;
+	private static final int BLOCK_SIZE = 1 << 14; // records counted and scattered by one task
+	private static final int MAX_DIGIT_BITS = 11;
+	private static final long MAX_CELLS = 1L << 32; // square ids take the top half of a key
+
+	// Post: returns true if this engine should bin the given number of records into ginfo's grid
+	public static boolean isBetterFor(GridInfo ginfo, int records) {
+		return (double) ginfo.getMaxCols() * ginfo.getMaxRows() >= MIN_CELLS_PER_RECORD * records;
+	}
+
+	// Pre: data has been projected and has at least one record, ginfo is a grid over its borders
+	//       of at most 2^32 squares, populationGrid is all zeros and the size of ginfo's grid
+	// Post: fills populationGrid with the population of every grid square, the same grid
+	//       ParallelBuildGrid builds
+	public static void build(CensusColumns data, GridInfo ginfo, LongGrid populationGrid, ForkJoinPool fjPool) {
+		long cells = (long) ginfo.getMaxCols() * ginfo.getMaxRows();
+		if (cells > MAX_CELLS) {
+			throw new IllegalArgumentException("too many grid squares to sort: " + cells);
+		}
+		long[] keys = new long[data.size];
+		fjPool.invoke(new MakeKeys(data, ginfo, keys, 0, data.size));
+
+		// least significant digit first, over as many bits as the largest square id has
+		int idBits = 64 - Long.numberOfLeadingZeros(cells - 1);
+		int passes = (idBits + MAX_DIGIT_BITS - 1) / MAX_DIGIT_BITS;
+		long[] buffer = new long[data.size];
+		for (int pass = 0; pass < passes; pass++) {
+			int digitBits = (idBits + passes - 1) / passes;
+			int shift = 32 + pass * digitBits;
+			int radix = 1 << Math.min(digitBits, idBits - pass * digitBits);
+			int blocks = (data.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			int[][] counts = new int[blocks][radix];
+			fjPool.invoke(new CountDigits(keys, counts, shift, 0, blocks));
+			// counts become the first position of every digit of every block
+			int position = 0;
+			for (int d = 0; d < radix; d++) {
+				for (int b = 0; b < blocks; b++) {
+					int count = counts[b][d];
+					counts[b][d] = position;
+					position += count;
+				}
+			}
+			PopulationQuery.checkCancelled();
+			fjPool.invoke(new Scatter(keys, buffer, counts, shift, 0, blocks));
+			long[] temp = keys;
+			keys = buffer;
+			buffer = temp;
+		}
+
+		fjPool.invoke(new SumRuns(keys, populationGrid, 0, keys.length));
+	}
+
+	/*
+	 * Packs the square id, x * rows + y, of each record from start (inclusive) to end
+	 * (exclusive) above its population.
+	 */
+	@SuppressWarnings("serial")
+	private static class MakeKeys extends RecursiveAction {
+		private CensusColumns data;
+		private GridInfo ginfo;
+		private long[] keys;
+		private int start, end;
+
+		public MakeKeys(CensusColumns data, GridInfo ginfo, long[] keys, int start, int end) {
+			this.data = data;
+			this.ginfo = ginfo;
+			this.keys = keys;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= BLOCK_SIZE) {
+				PopulationQuery.checkCancelled();
+				QuantizedCoordinates quantized = data.quantized;
+				int rows = ginfo.getMaxRows();
+				for (int i = start; i < end; i++) {
+					int x, y;
+					if (quantized != null) {
+						x = quantized.column(i, ginfo);
+						y = quantized.row(i, ginfo);
+					} else {
+						x = (int) Math.floor((data.longitude[i] - ginfo.getMinLon())/ginfo.getLonGridSize());
+						y = (int) Math.floor((data.latitude[i] - ginfo.getMinLat())/ginfo.getLatGridSize());
+						if (x == ginfo.getMaxCols()) {
+							x--; //So the eastmost location gets added to the grid
+						}
+						if (y == ginfo.getMaxRows()) {
+							y--; //So the northernmost location gets added to the grid
+						}
+					}
+					keys[i] = (((long) x * rows + y) << 32) | data.population[i];
+				}
+				PopulationQuery.reportBinned(end - start);
+			} else {
+				int mid = (start + end) / 2;
+				MakeKeys left = new MakeKeys(data, ginfo, keys, start, mid);
+				MakeKeys right = new MakeKeys(data, ginfo, keys, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Counts the digits of the keys in blocks minBlock (inclusive) to maxBlock (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private static class CountDigits extends RecursiveAction {
+		private long[] keys;
+		private int[][] counts;
+		private int shift;
+		private int minBlock, maxBlock;
+
+		public CountDigits(long[] keys, int[][] counts, int shift, int minBlock, int maxBlock) {
+			this.keys = keys;
+			this.counts = counts;
+			this.shift = shift;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= 1) {
+				int[] count = counts[minBlock];
+				int mask = count.length - 1;
+				int end = Math.min(keys.length, (minBlock + 1) * BLOCK_SIZE);
+				for (int i = minBlock * BLOCK_SIZE; i < end; i++) {
+					count[(int) (keys[i] >>> shift) & mask]++;
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				CountDigits left = new CountDigits(keys, counts, shift, minBlock, mid);
+				CountDigits right = new CountDigits(keys, counts, shift, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Moves the keys of blocks minBlock (inclusive) to maxBlock (exclusive) to their place for
+	 * this digit. Every block writes to positions no other block does.
+	 */
+	@SuppressWarnings("serial")
+	private static class Scatter extends RecursiveAction {
+		private long[] keys, sorted;
+		private int[][] positions;
+		private int shift;
+		private int minBlock, maxBlock;
+
+		public Scatter(long[] keys, long[] sorted, int[][] positions, int shift, int minBlock, int maxBlock) {
+			this.keys = keys;
+			this.sorted = sorted;
+			this.positions = positions;
+			this.shift = shift;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= 1) {
+				int[] position = positions[minBlock];
+				int mask = position.length - 1;
+				int end = Math.min(keys.length, (minBlock + 1) * BLOCK_SIZE);
+				for (int i = minBlock * BLOCK_SIZE; i < end; i++) {
+					long key = keys[i];
+					sorted[position[(int) (key >>> shift) & mask]++] = key;
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				Scatter left = new Scatter(keys, sorted, positions, shift, minBlock, mid);
+				Scatter right = new Scatter(keys, sorted, positions, shift, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Adds up every run of one square that starts from start (inclusive) to end (exclusive)
+	 * of the sorted keys, following the last run past end if it goes on. A run that started
+	 * before start belongs to the task to the left, so every square is written by one task.
+	 */
+	@SuppressWarnings("serial")
+	private static class SumRuns extends RecursiveAction {
+		private long[] keys;
+		private LongGrid populationGrid;
+		private int start, end;
+
+		public SumRuns(long[] keys, LongGrid populationGrid, int start, int end) {
+			this.keys = keys;
+			this.populationGrid = populationGrid;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= BLOCK_SIZE) {
+				int rows = populationGrid.getRows();
+				int i = start;
+				while (i > 0 && i < end && (keys[i] >>> 32) == (keys[i - 1] >>> 32)) {
+					i++;
+				}
+				while (i < end) {
+					long id = keys[i] >>> 32;
+					long population = 0;
+					do {
+						population += (int) keys[i];
+						i++;
+					} while (i < keys.length && (keys[i] >>> 32) == id);
+					populationGrid.set((int) (id / rows), (int) (id % rows), population);
+				}
+			} else {
+				int mid = (start + end) / 2;
+				SumRuns left = new SumRuns(keys, populationGrid, start, mid);
+				SumRuns right = new SumRuns(keys, populationGrid, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
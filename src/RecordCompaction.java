@@ -0,0 +1,340 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Merges the records that lie at exactly the same latitude and longitude into one record
+ * with their total population, so that every scan and binning pass after it touches fewer
+ * records. Records at the same point fall on the same side of every edge of every query and
+ * every grid, so every version gives the same answers with or without them merged. Points
+ * that are only near each other are never merged, since a grid line could fall between them.
+ *
+ * The merging is a parallel hash partition: every record goes to one of PARTITIONS
+ * partitions by the hash of its point, each partition is merged by one task with a primitive
+ * open addressing hash map of its own, and the records that are left are packed in the order
+ * of the file. A merged record takes the place of the first record at its point. A point
+ * whose total population would overflow an int is kept as more than one record.
+ *
+ * Enabled with the system property pq.compact=true.
+ */
+public class RecordCompaction {
+	public static final boolean ENABLED = Boolean.getBoolean("pq.compact");
+	private static final int PARTITION_BITS = 6;
+	private static final int PARTITIONS = 1 << PARTITION_BITS;
+	private static final int BLOCK_SIZE = 1 << 14; // records counted and moved by one task
+	private CensusColumns columns;
+	private int recordsIn;
+
+	// Pre: data has at least one record
+	// Post: merges the records of data at the same point using fork-join parallelism, leaving
+	//       data as it was
+	public RecordCompaction(CensusColumns data, ForkJoinPool fjPool) {
+		recordsIn = data.size;
+		int blocks = (data.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int[][] counts = new int[blocks][PARTITIONS];
+		fjPool.invoke(new CountPartitions(data, counts, 0, blocks));
+		// counts become the first position of every partition of every block
+		int[] partitionStart = new int[PARTITIONS + 1];
+		int position = 0;
+		for (int p = 0; p < PARTITIONS; p++) {
+			partitionStart[p] = position;
+			for (int b = 0; b < blocks; b++) {
+				int count = counts[b][p];
+				counts[b][p] = position;
+				position += count;
+			}
+		}
+		partitionStart[PARTITIONS] = position;
+		int[] order = new int[data.size];
+		fjPool.invoke(new ScatterPartitions(data, order, counts, 0, blocks));
+		PopulationQuery.checkCancelled();
+
+		// merged[i] is the total population of the records merged into record i, for the
+		// records that are kept
+		int[] merged = new int[data.size];
+		boolean[] kept = new boolean[data.size];
+		fjPool.invoke(new MergePartitions(data, order, partitionStart, merged, kept, 0, PARTITIONS));
+		PopulationQuery.checkCancelled();
+
+		int[] positions = new int[blocks + 1];
+		fjPool.invoke(new CountKept(kept, positions, 0, blocks));
+		int size = 0;
+		for (int b = 0; b < blocks; b++) {
+			int count = positions[b];
+			positions[b] = size;
+			size += count;
+		}
+		columns = new CensusColumns(new int[size], new float[size], new float[size], size);
+		fjPool.invoke(new Pack(data, merged, kept, positions, columns, 0, blocks));
+	}
+
+	// Post: returns the merged records
+	public CensusColumns getColumns() {
+		return columns;
+	}
+
+	// Post: returns the number of records before merging
+	public int getRecordsIn() {
+		return recordsIn;
+	}
+
+	// Post: returns the number of records after merging
+	public int getRecordsOut() {
+		return columns.size;
+	}
+
+	// Post: returns how many records there were for every record left
+	public double getRatio() {
+		return (double) recordsIn / columns.size;
+	}
+
+	public String toString() {
+		return "merged " + recordsIn + " records into " + columns.size + " at distinct points, ratio "
+				+ String.format("%.3f", getRatio());
+	}
+
+	// Post: returns the point of record i as one long, latitude bits above longitude bits
+	private static long point(CensusColumns data, int i) {
+		return ((long) Float.floatToIntBits(data.realLatitude[i]) << 32)
+				| (Float.floatToIntBits(data.longitude[i]) & 0xFFFFFFFFL);
+	}
+
+	// Post: returns a well mixed hash of point (the finalizer of MurmurHash3)
+	private static long mix(long point) {
+		point ^= point >>> 33;
+		point *= 0xff51afd7ed558ccdL;
+		point ^= point >>> 33;
+		point *= 0xc4ceb9fe1a85ec53L;
+		point ^= point >>> 33;
+		return point;
+	}
+
+	// Post: returns the partition of point, from the top bits of its hash, so the slots of a
+	//       partition's map can use the bottom bits
+	private static int partition(long point) {
+		return (int) (mix(point) >>> (64 - PARTITION_BITS));
+	}
+
+	/*
+	 * Counts the records of every partition in blocks minBlock (inclusive) to maxBlock
+	 * (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private static class CountPartitions extends RecursiveAction {
+		private CensusColumns data;
+		private int[][] counts;
+		private int minBlock, maxBlock;
+
+		public CountPartitions(CensusColumns data, int[][] counts, int minBlock, int maxBlock) {
+			this.data = data;
+			this.counts = counts;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= 1) {
+				int[] count = counts[minBlock];
+				int end = Math.min(data.size, (minBlock + 1) * BLOCK_SIZE);
+				for (int i = minBlock * BLOCK_SIZE; i < end; i++) {
+					count[partition(point(data, i))]++;
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				CountPartitions left = new CountPartitions(data, counts, minBlock, mid);
+				CountPartitions right = new CountPartitions(data, counts, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Puts the index of every record of blocks minBlock (inclusive) to maxBlock (exclusive) in
+	 * its partition's part of order. Every block writes to positions no other block does, and
+	 * the records of a partition stay in the order of the file.
+	 */
+	@SuppressWarnings("serial")
+	private static class ScatterPartitions extends RecursiveAction {
+		private CensusColumns data;
+		private int[] order;
+		private int[][] positions;
+		private int minBlock, maxBlock;
+
+		public ScatterPartitions(CensusColumns data, int[] order, int[][] positions, int minBlock, int maxBlock) {
+			this.data = data;
+			this.order = order;
+			this.positions = positions;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= 1) {
+				int[] position = positions[minBlock];
+				int end = Math.min(data.size, (minBlock + 1) * BLOCK_SIZE);
+				for (int i = minBlock * BLOCK_SIZE; i < end; i++) {
+					order[position[partition(point(data, i))]++] = i;
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				ScatterPartitions left = new ScatterPartitions(data, order, positions, minBlock, mid);
+				ScatterPartitions right = new ScatterPartitions(data, order, positions, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Merges the records of partitions minPartition (inclusive) to maxPartition (exclusive),
+	 * one hash map per partition. The records of different partitions never share a point, so
+	 * no two tasks touch the same record.
+	 */
+	@SuppressWarnings("serial")
+	private static class MergePartitions extends RecursiveAction {
+		private CensusColumns data;
+		private int[] order, partitionStart, merged;
+		private boolean[] kept;
+		private int minPartition, maxPartition;
+
+		public MergePartitions(CensusColumns data, int[] order, int[] partitionStart, int[] merged,
+				boolean[] kept, int minPartition, int maxPartition) {
+			this.data = data;
+			this.order = order;
+			this.partitionStart = partitionStart;
+			this.merged = merged;
+			this.kept = kept;
+			this.minPartition = minPartition;
+			this.maxPartition = maxPartition;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxPartition - minPartition <= 1) {
+				int start = partitionStart[minPartition];
+				int end = partitionStart[minPartition + 1];
+				// at most half full, so probes stay short
+				int slots = Integer.highestOneBit(Math.max(1, end - start)) << 2;
+				int mask = slots - 1;
+				long[] points = new long[slots];
+				int[] owners = new int[slots]; // the record kept for the point, plus 1, 0 if empty
+				for (int j = start; j < end; j++) {
+					int i = order[j];
+					long point = point(data, i);
+					int slot = (int) mix(point) & mask;
+					while (owners[slot] != 0 && points[slot] != point) {
+						slot = (slot + 1) & mask;
+					}
+					int owner = owners[slot] - 1;
+					if (owner >= 0 && (long) merged[owner] + data.population[i] <= Integer.MAX_VALUE) {
+						merged[owner] += data.population[i];
+					} else { // the first record at the point, or the last one is full
+						points[slot] = point;
+						owners[slot] = i + 1;
+						merged[i] = data.population[i];
+						kept[i] = true;
+					}
+				}
+			} else {
+				int mid = (minPartition + maxPartition) / 2;
+				MergePartitions left = new MergePartitions(data, order, partitionStart, merged, kept,
+						minPartition, mid);
+				MergePartitions right = new MergePartitions(data, order, partitionStart, merged, kept,
+						mid, maxPartition);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Counts the records kept in each of blocks minBlock (inclusive) to maxBlock (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private static class CountKept extends RecursiveAction {
+		private boolean[] kept;
+		private int[] counts;
+		private int minBlock, maxBlock;
+
+		public CountKept(boolean[] kept, int[] counts, int minBlock, int maxBlock) {
+			this.kept = kept;
+			this.counts = counts;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= 1) {
+				int end = Math.min(kept.length, (minBlock + 1) * BLOCK_SIZE);
+				int count = 0;
+				for (int i = minBlock * BLOCK_SIZE; i < end; i++) {
+					if (kept[i]) {
+						count++;
+					}
+				}
+				counts[minBlock] = count;
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				CountKept left = new CountKept(kept, counts, minBlock, mid);
+				CountKept right = new CountKept(kept, counts, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * Copies the records kept in blocks minBlock (inclusive) to maxBlock (exclusive), with
+	 * their merged populations, to their places in the merged columns.
+	 */
+	@SuppressWarnings("serial")
+	private static class Pack extends RecursiveAction {
+		private CensusColumns data, packed;
+		private int[] merged, positions;
+		private boolean[] kept;
+		private int minBlock, maxBlock;
+
+		public Pack(CensusColumns data, int[] merged, boolean[] kept, int[] positions, CensusColumns packed,
+				int minBlock, int maxBlock) {
+			this.data = data;
+			this.merged = merged;
+			this.kept = kept;
+			this.positions = positions;
+			this.packed = packed;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= 1) {
+				int end = Math.min(data.size, (minBlock + 1) * BLOCK_SIZE);
+				int position = positions[minBlock];
+				for (int i = minBlock * BLOCK_SIZE; i < end; i++) {
+					if (kept[i]) {
+						packed.population[position] = merged[i];
+						packed.realLatitude[position] = data.realLatitude[i];
+						packed.longitude[position] = data.longitude[i];
+						position++;
+					}
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				Pack left = new Pack(data, merged, kept, positions, packed, minBlock, mid);
+				Pack right = new Pack(data, merged, kept, positions, packed, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
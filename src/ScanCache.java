@@ -0,0 +1,253 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * A cache for the scanning versions [version 1, 2], which otherwise scan every record for
+ * every query. It keeps two things:
+ *
+ *   - the answers to the most recent queries, by (w, s, e, n), dropping the least recently
+ *     used once there are more than its capacity.
+ *   - the population of every grid square a scan has seen. A scan that misses bins the
+ *     records it finds into squares as it sums them, for the smallest block of squares that
+ *     covers every square of the query not yet known. A query whose squares are all known
+ *     is added up from them with no scan.
+ *
+ * A square's population is that of the 1 by 1 query on it, with the same edges, so a query
+ * added up from squares is exactly what a scan would find. The cache is safe for several
+ * threads at once: scans run outside its lock, so the batch runner's queries still scan in
+ * parallel.
+ *
+ * Enabled with the system property pq.cache=number of answers to keep.
+ */
+public class ScanCache {
+	public static final int CAPACITY = Integer.getInteger("pq.cache", 0);
+	private static final int SEQUENTIAL_CUTOFF = 1 << 16;
+	private CensusColumns data;
+	private int columns, rows;
+	private float[] lonEdges; // lonEdges[x] is the western edge of column x
+	private float[] latEdges; // real latitudes, latEdges[y] is the southern edge of row y
+	private int[] squares; // row after row
+	private BitSet known;
+	private LinkedHashMap<Query, Integer> answers;
+	private long exactHits, squareHits, partialHits, misses;
+
+	// Pre: data holds the records preData describes, capacity positive
+	// Post: creates an empty cache for queries on a columns by rows grid
+	public ScanCache(CensusColumns data, PreprocessResult preData, int columns, int rows, final int capacity) {
+		this.data = data;
+		this.columns = columns;
+		this.rows = rows;
+		// the edges the queries themselves use, so that squares add up to queries exactly
+		lonEdges = new float[columns + 1];
+		for (int x = 0; x < columns; x++) {
+			float[] bounds = PopulationQuery.queryBounds(preData, rows, columns, x + 1, 1, x + 1, 1);
+			lonEdges[x] = bounds[0];
+			lonEdges[x + 1] = bounds[2];
+		}
+		latEdges = new float[rows + 1];
+		for (int y = 0; y < rows; y++) {
+			float[] bounds = PopulationQuery.queryBounds(preData, rows, columns, 1, y + 1, 1, y + 1);
+			latEdges[y] = bounds[1];
+			latEdges[y + 1] = bounds[3];
+		}
+		squares = new int[columns * rows];
+		known = new BitSet(columns * rows);
+		answers = new LinkedHashMap<Query, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Query, Integer> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	// Pre: query is valid for the grid
+	// Post: returns the population of the query, scanning, in parallel if fjPool is not null,
+	//       only for squares not seen before
+	public int population(int w, int s, int e, int n, ForkJoinPool fjPool) {
+		Query query = new Query(w, s, e, n);
+		int minX, maxX, minY, maxY;
+		synchronized (this) {
+			Integer answer = answers.get(query);
+			if (answer != null) {
+				exactHits++;
+				return answer;
+			}
+			// the block of the squares of the query not yet known
+			minX = e;
+			maxX = w - 1;
+			minY = n;
+			maxY = s - 1;
+			for (int y = s - 1; y < n; y++) {
+				for (int x = w - 1; x < e; x++) {
+					if (!known.get(y * columns + x)) {
+						minX = Math.min(minX, x);
+						maxX = Math.max(maxX, x);
+						minY = Math.min(minY, y);
+						maxY = Math.max(maxY, y);
+					}
+				}
+			}
+			if (minX > maxX) {
+				squareHits++;
+				return remember(query);
+			}
+			if (minX == w - 1 && maxX == e - 1 && minY == s - 1 && maxY == n - 1) {
+				misses++;
+			} else {
+				partialHits++;
+			}
+		}
+
+		int[] found = (fjPool == null) ? scan(minX, maxX + 1, minY, maxY + 1, 0, data.size)
+				: fjPool.invoke(new ScanSquares(minX, maxX + 1, minY, maxY + 1, 0, data.size));
+		synchronized (this) {
+			int width = maxX - minX + 1;
+			for (int y = minY; y <= maxY; y++) {
+				for (int x = minX; x <= maxX; x++) {
+					int square = y * columns + x;
+					squares[square] = found[(y - minY) * width + (x - minX)];
+					known.set(square);
+				}
+			}
+			return remember(query);
+		}
+	}
+
+	// Pre: every square of the query is known, called holding the lock
+	// Post: adds up the query from the squares and keeps the answer
+	private int remember(Query query) {
+		int population = 0;
+		for (int y = query.s - 1; y < query.n; y++) {
+			for (int x = query.w - 1; x < query.e; x++) {
+				population += squares[y * columns + x];
+			}
+		}
+		answers.put(query, population);
+		return population;
+	}
+
+	// Post: returns how many queries were answered by the cache of answers, by squares
+	//       alone, by squares and a scan, and by a scan alone, in that order
+	public synchronized long[] getCounts() {
+		return new long[] {exactHits, squareHits, partialHits, misses};
+	}
+
+	// Post: returns the share of queries answered with no scan at all
+	public synchronized double getHitRate() {
+		long total = exactHits + squareHits + partialHits + misses;
+		return (total == 0) ? 0 : (double) (exactHits + squareHits) / total;
+	}
+
+	// Post: returns the number of grid squares known
+	public synchronized int getKnownSquares() {
+		return known.cardinality();
+	}
+
+	public synchronized String toString() {
+		return "answers " + exactHits + ", from squares " + squareHits + ", partial scans " + partialHits
+				+ ", full scans " + misses + ", hit rate " + getHitRate();
+	}
+
+	// Post: bins the records from start (inclusive) to end (exclusive) that fall in the block
+	//       of squares from column minX to maxX and row minY to maxY, exclusive of the
+	//       maximums. Returns the population of every square of the block, row after row.
+	private int[] scan(int minX, int maxX, int minY, int maxY, int start, int end) {
+		int width = maxX - minX;
+		int[] found = new int[width * (maxY - minY)];
+		float west = lonEdges[minX], east = lonEdges[maxX];
+		float south = latEdges[minY], north = latEdges[maxY];
+		for (int i = start; i < end; i++) {
+			float lon = data.longitude[i];
+			float lat = data.realLatitude[i];
+			if (lon >= west && lat >= south && lon < east && lat < north) {
+				int x = edgeBelow(lonEdges, lon);
+				int y = edgeBelow(latEdges, lat);
+				found[(y - minY) * width + (x - minX)] += data.population[i];
+			}
+		}
+		return found;
+	}
+
+	// Post: returns the index of the last edge at or below value, or -1 if there is none
+	private static int edgeBelow(float[] edges, float value) {
+		int index = Arrays.binarySearch(edges, value);
+		if (index < 0) {
+			return -index - 2;
+		}
+		while (index + 1 < edges.length && edges[index + 1] == value) {
+			index++; // squares of no width
+		}
+		return index;
+	}
+
+	/*
+	 * A query, as the key of the cache of answers.
+	 */
+	private static class Query {
+		private int w, s, e, n;
+
+		public Query(int w, int s, int e, int n) {
+			this.w = w;
+			this.s = s;
+			this.e = e;
+			this.n = n;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Query)) {
+				return false;
+			}
+			Query query = (Query) other;
+			return w == query.w && s == query.s && e == query.e && n == query.n;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((w * 31 + s) * 31 + e) * 31 + n;
+		}
+	}
+
+	/*
+	 * Runs scan over the records from start (inclusive) to end (exclusive) in parallel.
+	 */
+	@SuppressWarnings("serial")
+	private class ScanSquares extends RecursiveTask<int[]> {
+		private int minX, maxX, minY, maxY;
+		private int start, end;
+
+		public ScanSquares(int minX, int maxX, int minY, int maxY, int start, int end) {
+			this.minX = minX;
+			this.maxX = maxX;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				return scan(minX, maxX, minY, maxY, start, end);
+			} else {
+				int mid = (start + end) / 2;
+				ScanSquares left = new ScanSquares(minX, maxX, minY, maxY, start, mid);
+				ScanSquares right = new ScanSquares(minX, maxX, minY, maxY, mid, end);
+				left.fork();
+				int[] found = right.compute();
+				int[] leftFound = left.join();
+				for (int i = 0; i < found.length; i++) {
+					found[i] += leftFound[i];
+				}
+				return found;
+			}
+		}
+	}
+}
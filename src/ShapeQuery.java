@@ -0,0 +1,380 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Answers queries for the population inside shapes that are not grid rectangles: polygons
+ * of longitudes and real latitudes, and circles of a great-circle radius around a point.
+ *
+ * The records are indexed by the squares of a grid of their own, sized for the number of
+ * records rather than the queries: sorted so the records of every square are next to each
+ * other, with a grid of sums of their populations. A query looks only at the squares that
+ * overlap the bounding box of its shape, in blocks. Blocks wholly inside the
+ * shape are read off the grid of sums, blocks wholly outside are skipped, and the rest are
+ * split, in parallel, until only the records of single squares on the boundary of the shape
+ * are tested one by one. Blocks are tested with their edges moved out by EDGE_MARGIN
+ * degrees, more than the rounding of the binning, so a block is only called inside or
+ * outside if every record binned into it is.
+ *
+ * Needs the records, so there is no index for the streamed or sharded versions.
+ */
+public class ShapeQuery {
+	public static final double EARTH_RADIUS_KM = 6371.0088; // mean radius
+	private static final float EDGE_MARGIN = 1e-3f; // degrees, about 100 m
+	private static final int SEQUENTIAL_CUTOFF = 10000;
+	private static final int SEQUENTIAL_BLOCK = 64; // squares
+	// Squares of the index are sized for this many records on average, whatever the grid
+	// of the queries is: finer squares mean more of them along the boundary of a shape,
+	// coarser ones more records to test in each.
+	public static final int RECORDS_PER_SQUARE = 16;
+	public static final int INSIDE = 0, OUTSIDE = 1, BOUNDARY = 2;
+	private int columns, rows;
+	private GridInfo ginfo;
+	private LongGrid sums;
+	private int[] firstRecord; // of every square in row after row order, then the number of records
+	private int[] population;
+	private float[] realLatitude;
+	private float[] longitude;
+	// the real latitudes of the edges between rows, rowEdges[y] is the southern edge of row y
+	private float[] rowEdges;
+
+	/*
+	 * A region of the map, in longitudes and real latitudes.
+	 */
+	public interface Shape {
+		// Post: returns true if the point is in the shape
+		boolean contains(float longitude, float latitude);
+
+		// Post: returns INSIDE or OUTSIDE if every point of the box is inside or outside the
+		//       shape, otherwise BOUNDARY
+		int classify(float minLon, float minLat, float maxLon, float maxLat);
+
+		// Post: returns {minLon, minLat, maxLon, maxLat} of a box around the shape
+		float[] bounds();
+	}
+
+	// Pre: data holds the records preData describes
+	// Post: indexes the records by the squares of a grid of about RECORDS_PER_SQUARE records a
+	//       square, using fork-join parallelism
+	public ShapeQuery(CensusColumns data, PreprocessResult preData, ForkJoinPool fjPool) {
+		double target = Math.max(1.0, (double) data.size / RECORDS_PER_SQUARE);
+		double width = Math.max(Float.MIN_VALUE, preData.highLon - preData.lowLon);
+		double height = Math.max(Float.MIN_VALUE, preData.highLat - preData.lowLat);
+		columns = (int) Math.max(1, Math.min(target, Math.round(Math.sqrt(target * width / height))));
+		rows = (int) Math.max(1, Math.round(target / columns));
+		float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
+		float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
+		ginfo = new GridInfo(columns, rows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+		rowEdges = new float[rows + 1];
+		for (int y = 0; y <= rows; y++) {
+			rowEdges[y] = Mercator.lowestProjectingTo(preData.lowLat + latGridSize * y);
+		}
+
+		data.project(fjPool);
+		int[] squares = new int[data.size];
+		fjPool.invoke(new FindSquares(data, squares, 0, data.size));
+
+		// counting sort of the records by square
+		firstRecord = new int[columns * rows + 1];
+		for (int square : squares) {
+			firstRecord[square + 1]++;
+		}
+		for (int i = 1; i < firstRecord.length; i++) {
+			firstRecord[i] += firstRecord[i - 1];
+		}
+		int[] next = firstRecord.clone();
+		population = new int[data.size];
+		realLatitude = new float[data.size];
+		longitude = new float[data.size];
+		sums = new LongGrid(columns, rows);
+		for (int i = 0; i < data.size; i++) {
+			int position = next[squares[i]]++;
+			population[position] = data.population[i];
+			realLatitude[position] = data.realLatitude[i];
+			longitude[position] = data.longitude[i];
+			sums.set(squares[i], sums.get(squares[i]) + data.population[i]);
+		}
+		sums.toSums(fjPool);
+	}
+
+	// Post: returns the population inside the shape, using fork-join parallelism
+	public long population(Shape shape, ForkJoinPool fjPool) {
+		float[] bounds = shape.bounds();
+		// widened by the margin, since records near an edge may be binned across it
+		int minX = Math.max(0, column(bounds[0] - EDGE_MARGIN));
+		int maxX = Math.min(columns - 1, column(bounds[2] + EDGE_MARGIN));
+		int minY = Math.max(0, row(bounds[1] - EDGE_MARGIN));
+		int maxY = Math.min(rows - 1, row(bounds[3] + EDGE_MARGIN));
+		if (minX > maxX || minY > maxY) {
+			return 0;
+		}
+		return fjPool.invoke(new ShapeBlock(shape, minX, maxX + 1, minY, maxY + 1));
+	}
+
+	// Post: returns the column the longitude falls in, which may be outside the grid
+	private int column(float lon) {
+		return (int) Math.floor((lon - ginfo.getMinLon()) / ginfo.getLonGridSize());
+	}
+
+	// Post: returns the row the real latitude falls in, which may be outside the grid
+	private int row(float lat) {
+		if (lat < rowEdges[0]) {
+			return -1;
+		}
+		int low = 0, high = rows; // rowEdges[low] <= lat, search for the last such edge
+		while (high - low > 1) {
+			int mid = (low + high) / 2;
+			if (rowEdges[mid] <= lat) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Adds up the population of the shape in the block of squares from column minX to maxX
+	 * and row minY to maxY, exclusive of the maximums. A block wholly inside or outside the
+	 * shape is settled at once, any other block is split in two along its longer side, down
+	 * to single squares whose records are tested. So the work follows the boundary of the
+	 * shape rather than its area.
+	 */
+	@SuppressWarnings("serial")
+	private class ShapeBlock extends RecursiveTask<Long> {
+		private Shape shape;
+		private int minX, maxX, minY, maxY;
+
+		public ShapeBlock(Shape shape, int minX, int maxX, int minY, int maxY) {
+			this.shape = shape;
+			this.minX = minX;
+			this.maxX = maxX;
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+
+		@Override
+		protected Long compute() {
+			float west = ginfo.getMinLon() + ginfo.getLonGridSize() * minX - EDGE_MARGIN;
+			float east = ginfo.getMinLon() + ginfo.getLonGridSize() * maxX + EDGE_MARGIN;
+			float south = rowEdges[minY] - EDGE_MARGIN;
+			float north = rowEdges[maxY] + EDGE_MARGIN;
+			int kind = shape.classify(west, south, east, north);
+			if (kind == INSIDE) {
+				return sums.population(minX + 1, minY + 1, maxX, maxY);
+			} else if (kind == OUTSIDE) {
+				return 0L;
+			} else if (maxX - minX == 1 && maxY - minY == 1) {
+				long total = 0;
+				int square = minY * columns + minX;
+				for (int i = firstRecord[square]; i < firstRecord[square + 1]; i++) {
+					if (shape.contains(longitude[i], realLatitude[i])) {
+						total += population[i];
+					}
+				}
+				return total;
+			}
+			ShapeBlock left, right;
+			if (maxX - minX >= maxY - minY) {
+				int midX = (minX + maxX) / 2;
+				left = new ShapeBlock(shape, minX, midX, minY, maxY);
+				right = new ShapeBlock(shape, midX, maxX, minY, maxY);
+			} else {
+				int midY = (minY + maxY) / 2;
+				left = new ShapeBlock(shape, minX, maxX, minY, midY);
+				right = new ShapeBlock(shape, minX, maxX, midY, maxY);
+			}
+			if ((long) (maxX - minX) * (maxY - minY) <= SEQUENTIAL_BLOCK) {
+				return left.compute() + right.compute();
+			}
+			left.fork();
+			long rightTotal = right.compute();
+			return left.join() + rightTotal;
+		}
+	}
+
+	/*
+	 * Works out the square, y * columns + x, of the records from start (inclusive) to end
+	 * (exclusive), the same way ParallelBuildGrid bins them.
+	 */
+	@SuppressWarnings("serial")
+	private class FindSquares extends RecursiveAction {
+		private CensusColumns data;
+		private int[] squares;
+		private int start, end;
+
+		public FindSquares(CensusColumns data, int[] squares, int start, int end) {
+			this.data = data;
+			this.squares = squares;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_CUTOFF) {
+				for (int i = start; i < end; i++) {
+					int x = (int) Math.floor((data.longitude[i] - ginfo.getMinLon())/ginfo.getLonGridSize());
+					int y = (int) Math.floor((data.latitude[i] - ginfo.getMinLat())/ginfo.getLatGridSize());
+					if (x == ginfo.getMaxCols()) {
+						x--; //So the eastmost location gets added to the grid
+					}
+					if (y == ginfo.getMaxRows()) {
+						y--; //So the northernmost location gets added to the grid
+					}
+					squares[i] = y * columns + x;
+				}
+			} else {
+				int mid = (start + end) / 2;
+				FindSquares left = new FindSquares(data, squares, start, mid);
+				FindSquares right = new FindSquares(data, squares, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+
+	/*
+	 * A polygon of longitudes and real latitudes, treated as flat, with the even-odd rule.
+	 */
+	public static class Polygon implements Shape {
+		private float[] lons, lats;
+
+		// Pre: lons and lats are the same length, at least 3, the vertices in order
+		public Polygon(float[] lons, float[] lats) {
+			if (lons.length != lats.length || lons.length < 3) {
+				throw new IllegalArgumentException("a polygon needs 3 or more vertices");
+			}
+			this.lons = lons.clone();
+			this.lats = lats.clone();
+		}
+
+		@Override
+		public boolean contains(float longitude, float latitude) {
+			boolean inside = false;
+			for (int i = 0, j = lons.length - 1; i < lons.length; j = i++) {
+				if ((lats[i] > latitude) != (lats[j] > latitude)) {
+					double crossing = lons[i] + (double) (latitude - lats[i]) * (lons[j] - lons[i]) / (lats[j] - lats[i]);
+					if (longitude < crossing) {
+						inside = !inside;
+					}
+				}
+			}
+			return inside;
+		}
+
+		@Override
+		public int classify(float minLon, float minLat, float maxLon, float maxLat) {
+			for (int i = 0, j = lons.length - 1; i < lons.length; j = i++) {
+				if (crosses(lons[j], lats[j], lons[i], lats[i], minLon, minLat, maxLon, maxLat)) {
+					return BOUNDARY;
+				}
+			}
+			// no edge touches the box, so all of it is on one side
+			return contains((minLon + maxLon) / 2, (minLat + maxLat) / 2) ? INSIDE : OUTSIDE;
+		}
+
+		// Post: returns true if the segment from (x1, y1) to (x2, y2) touches the box, by
+		//       clipping it to the box one side at a time
+		private static boolean crosses(double x1, double y1, double x2, double y2,
+				double minX, double minY, double maxX, double maxY) {
+			double low = 0, high = 1;
+			double dx = x2 - x1, dy = y2 - y1;
+			double[] p = {-dx, dx, -dy, dy};
+			double[] q = {x1 - minX, maxX - x1, y1 - minY, maxY - y1};
+			for (int k = 0; k < 4; k++) {
+				if (p[k] == 0) {
+					if (q[k] < 0) {
+						return false;
+					}
+				} else {
+					double t = q[k] / p[k];
+					if (p[k] < 0) {
+						low = Math.max(low, t);
+					} else {
+						high = Math.min(high, t);
+					}
+				}
+			}
+			return low <= high;
+		}
+
+		@Override
+		public float[] bounds() {
+			float[] bounds = {lons[0], lats[0], lons[0], lats[0]};
+			for (int i = 1; i < lons.length; i++) {
+				bounds[0] = Math.min(bounds[0], lons[i]);
+				bounds[1] = Math.min(bounds[1], lats[i]);
+				bounds[2] = Math.max(bounds[2], lons[i]);
+				bounds[3] = Math.max(bounds[3], lats[i]);
+			}
+			return bounds;
+		}
+	}
+
+	/*
+	 * The points within a great-circle distance of a center, by the haversine formula.
+	 */
+	public static class Circle implements Shape {
+		private double lon, lat; // radians
+		private double radius; // radians of arc
+		private float lonDegrees, latDegrees;
+
+		// Pre: radiusKm is not negative
+		public Circle(float longitude, float latitude, double radiusKm) {
+			if (!(radiusKm >= 0)) {
+				throw new IllegalArgumentException("radius must not be negative");
+			}
+			lonDegrees = longitude;
+			latDegrees = latitude;
+			lon = Math.toRadians(longitude);
+			lat = Math.toRadians(latitude);
+			radius = radiusKm / EARTH_RADIUS_KM;
+		}
+
+		// Post: returns the angle between the center and the point, in radians
+		private double distance(double pointLon, double pointLat) {
+			double sinLat = Math.sin((pointLat - lat) / 2);
+			double sinLon = Math.sin((pointLon - lon) / 2);
+			double h = sinLat * sinLat + Math.cos(lat) * Math.cos(pointLat) * sinLon * sinLon;
+			return 2 * Math.asin(Math.min(1, Math.sqrt(h)));
+		}
+
+		@Override
+		public boolean contains(float longitude, float latitude) {
+			return distance(Math.toRadians(longitude), Math.toRadians(latitude)) <= radius;
+		}
+
+		@Override
+		public int classify(float minLon, float minLat, float maxLon, float maxLat) {
+			// the furthest point of a box of latitudes and longitudes is one of its corners
+			if (contains(minLon, minLat) && contains(minLon, maxLat)
+					&& contains(maxLon, minLat) && contains(maxLon, maxLat)) {
+				return INSIDE;
+			}
+			// no point of the box is nearer than its nearest latitude, nor, if the center is
+			// east or west of it, than the meridian of its nearest side
+			double west = Math.toRadians(minLon), east = Math.toRadians(maxLon);
+			double south = Math.toRadians(minLat), north = Math.toRadians(maxLat);
+			double nearest = Math.max(0, Math.max(south - lat, lat - north));
+			if (lon < west || lon > east) {
+				double across = Math.min(Math.abs(west - lon), Math.abs(east - lon));
+				nearest = Math.max(nearest, Math.asin(Math.cos(lat) * Math.abs(Math.sin(across))));
+			}
+			return (nearest > radius) ? OUTSIDE : BOUNDARY;
+		}
+
+		@Override
+		public float[] bounds() {
+			float latReach = (float) Math.toDegrees(radius);
+			double widest = Math.cos(Math.min(Math.PI / 2, Math.abs(lat) + radius));
+			float lonReach = (widest <= Math.sin(radius)) ? 180f
+					: (float) Math.toDegrees(Math.asin(Math.sin(radius) / widest));
+			return new float[] {lonDegrees - lonReach, latDegrees - latReach,
+					lonDegrees + lonReach, latDegrees + latReach};
+		}
+	}
+}
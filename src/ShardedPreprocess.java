@@ -0,0 +1,266 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Preprocessing for version 4 spread over several worker JVMs on this machine. The file is
+ * split at line boundaries into one byte range, a shard, per worker, and every worker reads
+ * only its shard with the chunk readers of StreamingPreprocess. The coordinator and the
+ * workers talk over the workers' standard input and output in two rounds:
+ *
+ *   1. every worker sends the number of records in its shard and, if there are any, their
+ *      total population and corners (real latitudes), as int, int and four floats. The
+ *      coordinator combines them into the borders of the map, exactly as one pass would.
+ *   2. the coordinator sends the grid every worker is to bin against, as columns and rows
+ *      (ints) then latitude and longitude square sizes and the south and west borders
+ *      (floats). Every worker bins its shard and sends back its grid of populations.
+ *
+ * A partial grid is sent as the number of squares that are not 0 (a long), then for each of
+ * them in row after row order the gap since the previous one and the population, both as
+ * unsigned varints (7 bits a byte, low bits first). Most squares of a fine grid are empty
+ * and most populations are small, so this is a few bytes per populated square. The
+ * coordinator adds the partial grids together and sums the one grid, which is the same as
+ * the grid a single process builds.
+ *
+ * Enabled with the system property pq.shards=number of workers. Workers are started with
+ * this JVM and class path, and have stderr passed through, so their errors are shown as is.
+ */
+public class ShardedPreprocess {
+	public static final int SHARDS = Integer.getInteger("pq.shards", 0);
+
+	// Pre: filename is valid, file is in readable location, shards >= 1
+	// Post: returns the corners of the map, the total population and the grid of sums for a
+	//       grid of the given size, built by worker processes that each read part of the file
+	public static Pair<PreprocessResult, LongGrid> preprocess(String filename, int columns, int rows,
+			int shards, ForkJoinPool fjPool) {
+		List<Process> workers = new ArrayList<Process>();
+		try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long headerEnd = StreamingPreprocess.lineAfter(channel, 0);
+			long shardSize = Math.max(1, (size - headerEnd + shards - 1) / shards);
+			long[] bounds = StreamingPreprocess.chunkBounds(channel, headerEnd, size, shardSize);
+			if (PopulationQuery.monitor != null) {
+				PopulationQuery.monitor.startParse(size);
+			}
+
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / (bounds.length - 1));
+			DataInputStream[] in = new DataInputStream[bounds.length - 1];
+			DataOutputStream[] out = new DataOutputStream[bounds.length - 1];
+			for (int i = 0; i < in.length; i++) {
+				Process worker = startWorker(filename, bounds[i], bounds[i + 1], threads);
+				workers.add(worker);
+				in[i] = new DataInputStream(new BufferedInputStream(worker.getInputStream()));
+				out[i] = new DataOutputStream(new BufferedOutputStream(worker.getOutputStream()));
+			}
+
+			// round 1: the corners and the total population
+			PreprocessResult preData = null;
+			int[] shardRecords = new int[in.length];
+			int records = 0;
+			for (int i = 0; i < in.length; i++) {
+				PopulationQuery.checkCancelled();
+				shardRecords[i] = in[i].readInt();
+				records += shardRecords[i];
+				if (shardRecords[i] > 0) {
+					PreprocessResult part = new PreprocessResult();
+					part.totPop = in[i].readInt();
+					part.highLat = in[i].readFloat();
+					part.lowLat = in[i].readFloat();
+					part.highLon = in[i].readFloat();
+					part.lowLon = in[i].readFloat();
+					preData = StreamingPreprocess.combine(preData, part);
+				}
+				if (PopulationQuery.monitor != null) {
+					PopulationQuery.monitor.parsed(bounds[i + 1]);
+				}
+			}
+			if (preData == null) {
+				throw new NumberFormatException("no records");
+			}
+			preData.highLat = Mercator.projectLatitude(preData.highLat);
+			preData.lowLat = Mercator.projectLatitude(preData.lowLat);
+
+			// round 2: binning against the one grid
+			float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
+			float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
+			for (int i = 0; i < out.length; i++) {
+				out[i].writeInt(columns);
+				out[i].writeInt(rows);
+				out[i].writeFloat(latGridSize);
+				out[i].writeFloat(lonGridSize);
+				out[i].writeFloat(preData.lowLat);
+				out[i].writeFloat(preData.lowLon);
+				out[i].close();
+			}
+			LongGrid populationGrid = PopulationQuery.newPopulationGrid();
+			PopulationQuery.reportBinningStart(records);
+			for (int i = 0; i < in.length; i++) {
+				PopulationQuery.checkCancelled();
+				addPartialGrid(in[i], populationGrid);
+				PopulationQuery.reportBinned(shardRecords[i]);
+			}
+			for (Process worker : workers) {
+				if (worker.waitFor() != 0) {
+					throw new IOException("shard worker exited with " + worker.exitValue());
+				}
+			}
+
+			if (fjPool == null) {
+				populationGrid.toSums();
+			} else {
+				populationGrid.toSums(fjPool);
+			}
+			return new Pair<PreprocessResult, LongGrid>(preData, populationGrid);
+		} catch(IOException ioe) {
+			// a worker that failed has already said why on stderr
+			destroyAll(workers);
+			System.err.println("Error in shard worker.");
+			System.exit(1);
+		} catch(NumberFormatException nfe) {
+			destroyAll(workers);
+			System.err.println(nfe.toString());
+			System.err.println("Error in file format");
+			System.exit(1);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ie);
+		} finally {
+			destroyAll(workers);
+		}
+		return null;
+	}
+
+	// Post: stops every worker that is still running
+	private static void destroyAll(List<Process> workers) {
+		for (Process worker : workers) {
+			worker.destroy();
+		}
+	}
+
+	// Post: starts a worker for the bytes from start (inclusive) to end (exclusive) of the file
+	private static Process startWorker(String filename, long start, long end, int threads) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		if (Mercator.FAST) {
+			command.add("-Dpq.mercator=fast"); // records must project as the borders did
+		}
+		command.add(ShardedPreprocess.class.getName());
+		command.add(filename);
+		command.add(Long.toString(start));
+		command.add(Long.toString(end));
+		command.add(Integer.toString(threads));
+		return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	// Pre: in is at the start of a partial grid the size of populationGrid
+	// Post: adds every square of the partial grid to populationGrid
+	private static void addPartialGrid(DataInputStream in, LongGrid populationGrid) throws IOException {
+		long squares = in.readLong();
+		long index = -1;
+		for (long i = 0; i < squares; i++) {
+			index += readVarLong(in) + 1;
+			populationGrid.set(index, populationGrid.get(index) + readVarLong(in));
+		}
+	}
+
+	// Post: writes every square of populationGrid that is not 0 as a partial grid
+	private static void writePartialGrid(DataOutputStream out, LongGrid populationGrid) throws IOException {
+		long cells = (long) populationGrid.getColumns() * populationGrid.getRows();
+		long squares = 0;
+		for (long index = 0; index < cells; index++) {
+			if (populationGrid.get(index) != 0) {
+				squares++;
+			}
+		}
+		out.writeLong(squares);
+		long previous = -1;
+		for (long index = 0; index < cells; index++) {
+			long population = populationGrid.get(index);
+			if (population != 0) {
+				writeVarLong(out, index - previous - 1);
+				writeVarLong(out, population);
+				previous = index;
+			}
+		}
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	// A shard worker: args are the file, the first and last byte (exclusive) of its shard,
+	// which start lines, and the number of threads to read with. Talks to the coordinator
+	// over standard input and output as described above.
+	public static void main(String[] args) {
+		String filename = args[0];
+		long start = Long.parseLong(args[1]);
+		long end = Long.parseLong(args[2]);
+		int threads = Integer.parseInt(args[3]);
+		ForkJoinPool fjPool = (threads > 1) ? new ForkJoinPool(threads) : null;
+		try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+			long[] bounds = StreamingPreprocess.chunkBounds(channel, start, end, StreamingPreprocess.CHUNK_SIZE);
+
+			Pair<PreprocessResult, Integer> corners = StreamingPreprocess.findCorners(channel, bounds, fjPool);
+			PreprocessResult result = corners.getElementA();
+			out.writeInt(corners.getElementB());
+			if (result != null) {
+				out.writeInt(result.totPop);
+				out.writeFloat(result.highLat);
+				out.writeFloat(result.lowLat);
+				out.writeFloat(result.highLon);
+				out.writeFloat(result.lowLon);
+			}
+			out.flush();
+
+			GridInfo ginfo = new GridInfo(in.readInt(), in.readInt(), in.readFloat(), in.readFloat(),
+					in.readFloat(), in.readFloat());
+			LongGrid populationGrid = new LongGrid(ginfo.getMaxCols(), ginfo.getMaxRows());
+			StreamingPreprocess.bin(channel, bounds, ginfo, populationGrid, fjPool);
+			writePartialGrid(out, populationGrid);
+			out.flush();
+		} catch(EOFException eofe) {
+			// the coordinator has gone, having reported whatever stopped it
+			System.exit(1);
+		} catch(IOException | UncheckedIOException ioe) {
+			System.err.println("Error opening/reading/writing input or output file.");
+			System.exit(1);
+		} catch(NumberFormatException nfe) {
+			System.err.println(nfe.toString());
+			System.err.println("Error in file format");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,389 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * Preprocessing for the grid-based versions that never holds the records in memory, for
+ * files bigger than the heap. The file is mapped a chunk at a time and read twice: the
+ * first pass finds what a PreprocessResult holds (the borders of the map and the total
+ * population), the second bins every record straight into the grid. Memory is the grid plus
+ * one chunk per worker, however big the file is. Records are read exactly as parse reads
+ * them, so the grid is the same as the one versions 3 and 4 build from a CensusData.
+ *
+ * Enabled for versions 3 and 4 with the system property pq.streaming=true. The chunks are
+ * read one after another like version 3, or with fork-join parallelism like version 4.
+ */
+public class StreamingPreprocess {
+	public static final boolean ENABLED = Boolean.getBoolean("pq.streaming");
+	static final int CHUNK_SIZE = 1 << 25; // bytes mapped and read by one task
+	private static long bytesRead;
+
+	// Pre: filename is valid, file is in readable location
+	// Post: returns the corners of the map, the total population and the grid of sums for a
+	//       grid of the given size, reading the chunks in parallel if fjPool is not null
+	public static Pair<PreprocessResult, LongGrid> preprocess(String filename, int columns, int rows,
+			ForkJoinPool fjPool) {
+		try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+			long[] bounds = chunkBounds(channel, lineAfter(channel, 0), channel.size(), CHUNK_SIZE);
+			bytesRead = 0;
+			if (PopulationQuery.monitor != null) {
+				PopulationQuery.monitor.startParse(channel.size());
+			}
+
+			// pass 1: the corners and the total population
+			Pair<PreprocessResult, Integer> corners = findCorners(channel, bounds, fjPool);
+			PreprocessResult preData = corners.getElementA();
+			if (preData == null) {
+				throw new NumberFormatException("no records");
+			}
+			// the projection never decreases, so these are the borders of the projected map
+			preData.highLat = Mercator.projectLatitude(preData.highLat);
+			preData.lowLat = Mercator.projectLatitude(preData.lowLat);
+
+			// pass 2: binning
+			float latGridSize = Math.abs((preData.highLat - preData.lowLat) / rows);
+			float lonGridSize = Math.abs((preData.highLon - preData.lowLon) / columns);
+			GridInfo ginfo = new GridInfo(columns, rows, latGridSize, lonGridSize, preData.lowLat, preData.lowLon);
+			LongGrid populationGrid = PopulationQuery.newPopulationGrid();
+			PopulationQuery.reportBinningStart(corners.getElementB());
+			bin(channel, bounds, ginfo, populationGrid, fjPool);
+
+			if (fjPool == null) {
+				populationGrid.toSums();
+			} else {
+				populationGrid.toSums(fjPool);
+			}
+			return new Pair<PreprocessResult, LongGrid>(preData, populationGrid);
+		} catch(IOException | UncheckedIOException ioe) {
+			System.err.println("Error opening/reading/writing input or output file.");
+			System.exit(1);
+		} catch(NumberFormatException nfe) {
+			System.err.println(nfe.toString());
+			System.err.println("Error in file format");
+			System.exit(1);
+		}
+		return null;
+	}
+
+	// Pre: bounds are from chunkBounds
+	// Post: returns the corners, with real latitudes, and the total population of the records
+	//       of the chunks, or null if there are none, paired with the number of records
+	static Pair<PreprocessResult, Integer> findCorners(FileChannel channel, long[] bounds, ForkJoinPool fjPool) {
+		FindCornersChunk[] corners = new FindCornersChunk[bounds.length - 1];
+		for (int i = 0; i < corners.length; i++) {
+			corners[i] = new FindCornersChunk(channel, bounds[i], bounds[i + 1]);
+		}
+		runAll(corners, fjPool);
+		PreprocessResult result = null;
+		int records = 0;
+		for (FindCornersChunk chunk : corners) {
+			records += chunk.records;
+			result = combine(result, chunk.result);
+		}
+		return new Pair<PreprocessResult, Integer>(result, records);
+	}
+
+	// Post: returns corners and total population covering both a and b, either of which may be
+	//       null for no records. May change a.
+	static PreprocessResult combine(PreprocessResult a, PreprocessResult b) {
+		if (a == null || b == null) {
+			return (a == null) ? b : a;
+		}
+		a.totPop += b.totPop;
+		a.highLat = Math.max(a.highLat, b.highLat);
+		a.lowLat = Math.min(a.lowLat, b.lowLat);
+		a.highLon = Math.max(a.highLon, b.highLon);
+		a.lowLon = Math.min(a.lowLon, b.lowLon);
+		return a;
+	}
+
+	// Pre: bounds are from chunkBounds, populationGrid is the size of ginfo's grid
+	// Post: adds the population of every record of the chunks to its square of populationGrid
+	static void bin(FileChannel channel, long[] bounds, GridInfo ginfo, LongGrid populationGrid,
+			ForkJoinPool fjPool) {
+		BinChunk[] bins = new BinChunk[bounds.length - 1];
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] = new BinChunk(channel, bounds[i], bounds[i + 1], ginfo, populationGrid);
+		}
+		runAll(bins, fjPool);
+	}
+
+	// Post: runs every task, one after another if fjPool is null
+	private static void runAll(final ChunkTask[] tasks, ForkJoinPool fjPool) {
+		if (fjPool == null) {
+			for (ChunkTask task : tasks) {
+				task.compute();
+			}
+		} else {
+			fjPool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		}
+	}
+
+	// Pre: from is the start of a line
+	// Post: returns the start of every chunk from from to to, then to. Chunks are about
+	//       chunkSize bytes and start at the beginning of a line.
+	static long[] chunkBounds(FileChannel channel, long from, long to, long chunkSize) throws IOException {
+		List<Long> bounds = new ArrayList<Long>();
+		long start = from;
+		while (start < to) {
+			bounds.add(start);
+			start = Math.min(to, lineAfter(channel, Math.max(start + 1, start + chunkSize - 1)));
+		}
+		bounds.add(to);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	// Post: returns the position just past the first line break at or after position, or the
+	//       end of the file
+	static long lineAfter(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long size = channel.size();
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	private static synchronized void reportParsed(long bytes) {
+		bytesRead += bytes;
+		if (PopulationQuery.monitor != null) {
+			PopulationQuery.monitor.parsed(bytesRead);
+		}
+	}
+
+	/*
+	 * Reads the records of one chunk of the file the way parse does: every line after the
+	 * header has 7 comma-separated fields, the 5th is the population and the 6th and 7th the
+	 * latitude and longitude, which are only read if the population is not 0.
+	 */
+	@SuppressWarnings("serial")
+	private static abstract class ChunkTask extends RecursiveAction {
+		private FileChannel channel;
+		private long start, end;
+		private int[] commas = new int[PopulationQuery.TOKENS_PER_LINE + 1];
+		private byte[] field = new byte[64];
+
+		public ChunkTask(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		// Post: takes one record of the chunk
+		protected abstract void record(int population, float latitude, float longitude);
+
+		// Post: called once every record of the chunk has been taken
+		protected abstract void finish();
+
+		@Override
+		protected void compute() {
+			PopulationQuery.checkCancelled();
+			MappedByteBuffer chunk;
+			try {
+				chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			int length = (int) (end - start);
+			int lineStart = 0;
+			while (lineStart < length) {
+				int lineEnd = lineStart;
+				int commaCount = 0;
+				while (lineEnd < length && chunk.get(lineEnd) != '\n') {
+					if (chunk.get(lineEnd) == ',') {
+						if (commaCount == commas.length) {
+							commas = Arrays.copyOf(commas, 2 * commas.length);
+						}
+						commas[commaCount++] = lineEnd;
+					}
+					lineEnd++;
+				}
+				int next = lineEnd + 1;
+				if (lineEnd > lineStart && chunk.get(lineEnd - 1) == '\r') {
+					lineEnd--; // readLine drops the \r of \r\n
+				}
+				// like String.split, which drops empty fields from the end of the line
+				int fields = commaCount + 1;
+				while (fields > 1 && fieldStart(fields - 1, lineStart) == fieldEnd(fields - 1, commaCount, lineEnd)) {
+					fields--;
+				}
+				if (fields != PopulationQuery.TOKENS_PER_LINE) {
+					throw new NumberFormatException();
+				}
+				int population = parseInt(chunk, fieldStart(PopulationQuery.POPULATION_INDEX, lineStart),
+						fieldEnd(PopulationQuery.POPULATION_INDEX, commaCount, lineEnd));
+				if (population != 0) {
+					float latitude = parseFloat(chunk, fieldStart(PopulationQuery.LATITUDE_INDEX, lineStart),
+							fieldEnd(PopulationQuery.LATITUDE_INDEX, commaCount, lineEnd));
+					float longitude = parseFloat(chunk, fieldStart(PopulationQuery.LONGITUDE_INDEX, lineStart),
+							fieldEnd(PopulationQuery.LONGITUDE_INDEX, commaCount, lineEnd));
+					record(population, latitude, longitude);
+				}
+				lineStart = next;
+			}
+			finish();
+		}
+
+		private int fieldStart(int index, int lineStart) {
+			return (index == 0) ? lineStart : commas[index - 1] + 1;
+		}
+
+		private int fieldEnd(int index, int commaCount, int lineEnd) {
+			return (index == commaCount) ? lineEnd : commas[index];
+		}
+
+		private int parseInt(MappedByteBuffer chunk, int from, int to) {
+			// plain digits are read directly, anything else is left to Integer.parseInt
+			if (to > from && to - from <= 9) {
+				int value = 0;
+				int i = from;
+				for (; i < to; i++) {
+					int digit = chunk.get(i) - '0';
+					if (digit < 0 || digit > 9) {
+						break;
+					}
+					value = value * 10 + digit;
+				}
+				if (i == to) {
+					return value;
+				}
+			}
+			return Integer.parseInt(text(chunk, from, to));
+		}
+
+		private float parseFloat(MappedByteBuffer chunk, int from, int to) {
+			return Float.parseFloat(text(chunk, from, to));
+		}
+
+		private String text(MappedByteBuffer chunk, int from, int to) {
+			if (to - from > field.length) {
+				field = new byte[to - from];
+			}
+			for (int i = from; i < to; i++) {
+				field[i - from] = chunk.get(i);
+			}
+			return new String(field, 0, to - from, StandardCharsets.ISO_8859_1);
+		}
+
+		protected long getLength() {
+			return end - start;
+		}
+	}
+
+	/*
+	 * Finds the corners, with real latitudes, the total population and the number of records
+	 * of one chunk.
+	 */
+	@SuppressWarnings("serial")
+	private static class FindCornersChunk extends ChunkTask {
+		private PreprocessResult result; // null if the chunk has no records
+		private int records;
+
+		public FindCornersChunk(FileChannel channel, long start, long end) {
+			super(channel, start, end);
+		}
+
+		@Override
+		protected void record(int population, float latitude, float longitude) {
+			if (result == null) {
+				result = new PreprocessResult();
+				result.highLat = latitude;
+				result.lowLat = latitude;
+				result.highLon = longitude;
+				result.lowLon = longitude;
+			}
+			result.totPop += population;
+			result.highLat = Math.max(result.highLat, latitude);
+			result.lowLat = Math.min(result.lowLat, latitude);
+			result.highLon = Math.max(result.highLon, longitude);
+			result.lowLon = Math.min(result.lowLon, longitude);
+			records++;
+		}
+
+		@Override
+		protected void finish() {
+			reportParsed(getLength());
+		}
+	}
+
+	/*
+	 * Bins the records of one chunk. The squares are worked out in parallel, then added to
+	 * the shared grid one chunk at a time.
+	 */
+	@SuppressWarnings("serial")
+	private static class BinChunk extends ChunkTask {
+		private GridInfo ginfo;
+		private LongGrid populationGrid;
+		private int[] xs = new int[1024];
+		private int[] ys = new int[1024];
+		private int[] populations = new int[1024];
+		private int records;
+
+		public BinChunk(FileChannel channel, long start, long end, GridInfo ginfo, LongGrid populationGrid) {
+			super(channel, start, end);
+			this.ginfo = ginfo;
+			this.populationGrid = populationGrid;
+		}
+
+		@Override
+		protected void record(int population, float latitude, float longitude) {
+			int x = (int) Math.floor((longitude - ginfo.getMinLon())/ginfo.getLonGridSize());
+			int y = (int) Math.floor((Mercator.projectLatitude(latitude) - ginfo.getMinLat())/ginfo.getLatGridSize());
+			if (x == ginfo.getMaxCols()) {
+				x--; //So the eastmost location gets added to the grid
+			}
+			if (y == ginfo.getMaxRows()) {
+				y--; //So the northernmost location gets added to the grid
+			}
+			if (records == xs.length) {
+				xs = Arrays.copyOf(xs, 2 * records);
+				ys = Arrays.copyOf(ys, 2 * records);
+				populations = Arrays.copyOf(populations, 2 * records);
+			}
+			xs[records] = x;
+			ys[records] = y;
+			populations[records] = population;
+			records++;
+		}
+
+		@Override
+		protected void finish() {
+			synchronized (populationGrid) {
+				for (int i = 0; i < records; i++) {
+					populationGrid.add(xs[i], ys[i], populations[i]);
+				}
+			}
+			PopulationQuery.reportBinned(records);
+			xs = ys = populations = null;
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 
 import javax.swing.BoxLayout;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -173,6 +174,15 @@ public class USMaps{
 						runProgram(appFrame);
 					}
 				});
+				// The View menu
+				JMenu viewMenu = new JMenu("View");
+				final JCheckBoxMenuItem heatmapItem = new JCheckBoxMenuItem("Population Heatmap");
+				heatmapItem.addActionListener(new ActionListener(){
+					public void actionPerformed(ActionEvent arg0) {
+						mapPane.setHeatmapVisible(heatmapItem.isSelected());
+						refreshHeatmap();
+					}
+				});
 				final JMenuItem noZoom = new JMenuItem("None");
 				noZoom.addActionListener(new ActionListener(){
 					public void actionPerformed(ActionEvent arg0) {
@@ -198,10 +208,13 @@ public class USMaps{
 				
 				zoomMenu.add(noZoom);
 				zoomMenu.add(zoom);
+				
+				viewMenu.add(heatmapItem);
 
 				toolbar.add(fileMenu);
 				toolbar.add(runMenu);
 				toolbar.add(zoomMenu);
+				toolbar.add(viewMenu);
 				
 				return toolbar;
 			}
@@ -214,8 +227,24 @@ public class USMaps{
 		int e = mapPane.getEast();
 		int n = mapPane.getNorth();
 		//System.out.println(w + ", " + s + ", " + e + ", " + n);
-		Pair<Integer,Float> result = PopulationQuery.singleInteraction(w, s, e, n);
-		InteractionPane.displayCensusData(result.getElementA(), result.getElementB());
+		// the answer is shown by InteractionPane.displayCensusData once the query finishes
+		GuiTaskQueue.run(w, s, e, n);
+	}
+	
+	// called while a selection is dragged with the live readout on
+	static void runLive(){
+		GuiTaskQueue.runLive(mapPane.getWest(), mapPane.getSouth(), mapPane.getEast(), mapPane.getNorth());
+	}
+	
+	// called whenever the grid changes, so the heatmap shows the populations of the new squares
+	static void refreshHeatmap(){
+		if(mapPane.isHeatmapVisible()){
+			GuiTaskQueue.computeCellPopulations();
+		}
+	}
+	
+	static void showCellPopulations(int[][] cells){
+		mapPane.setCellPopulations(cells);
 	}
 	
 	public static int getVersionNum(){
@@ -230,7 +259,14 @@ public class USMaps{
 	}
 	
 	public static void pqPreprocess(){
-		PopulationQuery.preprocess(FILENAME, 
+		GuiTaskQueue.preprocess(FILENAME, 
+				mapPane.getColumns(), mapPane.getRows(), getVersionNum());
+	}
+	
+	// called when the grid size changes: if the data for the running version is already
+	// preprocessed, the new grid is served from it instead of reading the file again
+	public static void pqRegrid(){
+		GuiTaskQueue.regrid(FILENAME, 
 				mapPane.getColumns(), mapPane.getRows(), getVersionNum());
 	}
 }
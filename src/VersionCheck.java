@@ -0,0 +1,174 @@
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The -verify mode of PopulationQuery, for checking a new JVM or machine: every version
+ * preprocesses the same file and answers the same random rectangles, and every answer,
+ * population and percentage, is checked against version 1 on one thread. It runs with 1,
+ * 2, 4 and so on up to the most threads asked for, and reports how long every version took
+ * to preprocess, how many queries a second it answered, and its speedups: preprocessing
+ * against the same version on one thread, queries against version 1 on one thread. Every
+ * version is run once untimed first.
+ *
+ * The versions keep their data in PopulationQuery, so they run one after another, each
+ * answering its queries in parallel the way BatchQueryRunner does. Version 5 always bins
+ * with its own PreprocessBuildGridLock.NUM_THREADS threads, whatever the thread count.
+ * Any pq.* properties apply to every version as they would normally.
+ */
+public class VersionCheck {
+	public static final int DEFAULT_QUERIES = 2000;
+	public static final int VERSIONS = 5;
+	private static final int SLICE_SIZE = 64; // queries answered by one task
+	private static final int MAX_REPORTED = 10; // mismatches printed per version and thread count
+	private static final long SEED = 0xC0FFEE;
+	private static final int WARMUP_QUERIES = 200;
+
+	// Pre: filename is valid and readable, columns and rows positive, queries and maxThreads positive
+	// Post: runs every version at every thread count, printing a report to out. Returns the
+	//       number of answers that did not match version 1 on one thread.
+	public static int run(String filename, int columns, int rows, int queries, int maxThreads, PrintStream out) {
+		int[] coords = randomQueries(columns, rows, queries, new Random(SEED));
+		int[] expectedPopulation = null;
+		float[] expectedPercent = null;
+		long[] firstPreprocess = new long[VERSIONS + 1]; // nanoseconds with one thread
+		double baseRate = 0; // queries a second of version 1 on one thread
+		int mismatches = 0;
+
+		// one untimed round first, so that the first version timed is not also compiling the code
+		for (int version = 1; version <= VERSIONS; version++) {
+			PopulationQuery.threads = 1;
+			PopulationQuery.preprocess(filename, columns, rows, version);
+			int warmup = Math.min(queries, WARMUP_QUERIES);
+			answer(coords, new int[warmup], new float[warmup]);
+			PopulationQuery.fjPool.shutdown();
+		}
+
+		out.println(queries + " random queries on a " + columns + " by " + rows + " grid of " + filename);
+		out.printf("%-8s %8s %14s %8s %12s %8s %11s%n", "version", "threads", "preprocess ms", "speedup",
+				"queries/s", "speedup", "mismatches");
+		for (int threads = 1; threads <= maxThreads; threads = nextThreads(threads, maxThreads)) {
+			for (int version = 1; version <= VERSIONS; version++) {
+				PopulationQuery.threads = threads;
+				long start = System.nanoTime();
+				PopulationQuery.preprocess(filename, columns, rows, version);
+				long preprocess = System.nanoTime() - start;
+
+				int[] population = new int[queries];
+				float[] percent = new float[queries];
+				start = System.nanoTime();
+				answer(coords, population, percent);
+				long answering = System.nanoTime() - start;
+				PopulationQuery.fjPool.shutdown();
+
+				if (expectedPopulation == null) {
+					expectedPopulation = population;
+					expectedPercent = percent;
+				}
+				int wrong = 0;
+				for (int i = 0; i < queries; i++) {
+					if (population[i] != expectedPopulation[i] || Float.compare(percent[i], expectedPercent[i]) != 0) {
+						if (wrong < MAX_REPORTED) {
+							out.println("  version " + version + " with " + threads + " threads: query "
+									+ coords[4 * i] + " " + coords[4 * i + 1] + " " + coords[4 * i + 2] + " "
+									+ coords[4 * i + 3] + " gave " + population[i] + " (" + percent[i]
+									+ "%), version 1 gave " + expectedPopulation[i] + " (" + expectedPercent[i] + "%)");
+						}
+						wrong++;
+					}
+				}
+				mismatches += wrong;
+
+				if (threads == 1) {
+					firstPreprocess[version] = preprocess;
+				}
+				double rate = queries / (Math.max(1, answering) / 1e9);
+				if (baseRate == 0) {
+					baseRate = rate;
+				}
+				out.printf("%-8d %8d %14.1f %8.2f %12.0f %8.2f %11d%n", version, threads, preprocess / 1e6,
+						(double) firstPreprocess[version] / preprocess, rate, rate / baseRate, wrong);
+			}
+		}
+		out.println((mismatches == 0) ? "all versions agree" : mismatches + " answers did not match version 1");
+		return mismatches;
+	}
+
+	// Post: returns the thread count after threads: the next power of two, or maxThreads if
+	//       that comes first, or more than maxThreads once it has been reached
+	private static int nextThreads(int threads, int maxThreads) {
+		return (threads == maxThreads) ? maxThreads + 1 : Math.min(threads * 2, maxThreads);
+	}
+
+	// Post: returns count valid queries on a columns by rows grid, west, south, east, north after
+	//       each other
+	private static int[] randomQueries(int columns, int rows, int count, Random random) {
+		int[] coords = new int[4 * count];
+		for (int i = 0; i < count; i++) {
+			int w = 1 + random.nextInt(columns);
+			int s = 1 + random.nextInt(rows);
+			coords[4 * i] = w;
+			coords[4 * i + 1] = s;
+			coords[4 * i + 2] = w + random.nextInt(columns - w + 1);
+			coords[4 * i + 3] = s + random.nextInt(rows - s + 1);
+		}
+		return coords;
+	}
+
+	// Pre: PopulationQuery.preprocess has been called, every query is valid
+	// Post: answers every query, in parallel unless the version is 2, whose queries each use
+	//       the whole pool already
+	private static void answer(int[] coords, int[] population, float[] percent) {
+		int count = population.length;
+		if (PopulationQuery.instanceVersion == 2) {
+			new AnswerQueries(coords, population, percent, 0, count).answer();
+		} else {
+			PopulationQuery.fjPool.invoke(new AnswerQueries(coords, population, percent, 0, count));
+		}
+	}
+
+	/*
+	 * Answers queries start (inclusive) to end (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private static class AnswerQueries extends RecursiveAction {
+		private int[] coords;
+		private int[] population;
+		private float[] percent;
+		private int start, end;
+
+		public AnswerQueries(int[] coords, int[] population, float[] percent, int start, int end) {
+			this.coords = coords;
+			this.population = population;
+			this.percent = percent;
+			this.start = start;
+			this.end = end;
+		}
+
+		// Post: answers the queries on this thread
+		public void answer() {
+			for (int i = start; i < end; i++) {
+				Pair<Integer, Float> answer = PopulationQuery.singleInteraction(coords[4 * i],
+						coords[4 * i + 1], coords[4 * i + 2], coords[4 * i + 3]);
+				population[i] = answer.getElementA();
+				percent[i] = answer.getElementB();
+			}
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SLICE_SIZE) {
+				answer();
+			} else {
+				int mid = (start + end) / 2;
+				AnswerQueries left = new AnswerQueries(coords, population, percent, start, mid);
+				AnswerQueries right = new AnswerQueries(coords, population, percent, mid, end);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Christopher Blappert and Michael Mitasev
+ *
+ * The box around the records of every block of blockSize records of a CensusColumns, and
+ * their total population. A scan can then skip a block whose box misses its rectangle and
+ * take the total of a block whose box lies inside it, and only has to look at the records of
+ * blocks its edges cut. That only pays when the records of a block are near each other, so
+ * the blocks are made after HilbertOrder has put the records in order along the curve.
+ *
+ * Boxes are compared the way CoordinateKernels compare records, so a scan gives exactly the
+ * answer it gives without zone maps.
+ */
+public class ZoneMaps {
+	private static final int SEQUENTIAL_CUTOFF = 64; // blocks
+	private int blockSize;
+	private float[] minLon, minLat, maxLon, maxLat; // real latitudes, all inclusive
+	private int[] population;
+
+	// Pre: data has at least one record, blockSize positive
+	// Post: works out the box and population of every block of data using fork-join parallelism
+	public ZoneMaps(CensusColumns data, int blockSize, ForkJoinPool fjPool) {
+		this.blockSize = blockSize;
+		int blocks = (data.size + blockSize - 1) / blockSize;
+		minLon = new float[blocks];
+		minLat = new float[blocks];
+		maxLon = new float[blocks];
+		maxLat = new float[blocks];
+		population = new int[blocks];
+		fjPool.invoke(new Summarize(data, 0, blocks));
+	}
+
+	// Post: returns the number of records in a block
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// Post: returns the number of blocks
+	public int getBlocks() {
+		return population.length;
+	}
+
+	// Pre: data is the CensusColumns these zone maps were made from
+	// Post: returns the population of the records from start (inclusive) to end (exclusive)
+	//       with minLon <= longitude < maxLon and minLat <= real latitude < maxLat, the same
+	//       as CoordinateKernels.sumInRange
+	public int sumInRange(CensusColumns data, int start, int end, float west, float south, float east, float north) {
+		int total = 0;
+		for (int i = start; i < end;) {
+			int block = i / blockSize;
+			int blockStart = block * blockSize;
+			int blockEnd = Math.min(blockStart + blockSize, data.size);
+			int stop = Math.min(blockEnd, end);
+			if (maxLon[block] < west || minLon[block] >= east || maxLat[block] < south || minLat[block] >= north) {
+				// no record of the block is in the rectangle
+			} else if (i == blockStart && stop == blockEnd && minLon[block] >= west && maxLon[block] < east
+					&& minLat[block] >= south && maxLat[block] < north) {
+				total += population[block];
+			} else {
+				total += CoordinateKernels.INSTANCE.sumInRange(data, i, stop, west, south, east, north);
+			}
+			i = stop;
+		}
+		return total;
+	}
+
+	// Pre: start < end
+	// Post: returns where to split the records from start to end in two for parallel scans,
+	//       on a block boundary if there is one between them
+	public int middle(int start, int end) {
+		int middle = (start + end) / 2;
+		int aligned = middle - middle % blockSize;
+		return (aligned > start) ? aligned : (aligned + blockSize < end) ? aligned + blockSize : middle;
+	}
+
+	/*
+	 * Works out the box and population of blocks minBlock (inclusive) to maxBlock (exclusive).
+	 */
+	@SuppressWarnings("serial")
+	private class Summarize extends RecursiveAction {
+		private CensusColumns data;
+		private int minBlock, maxBlock;
+
+		public Summarize(CensusColumns data, int minBlock, int maxBlock) {
+			this.data = data;
+			this.minBlock = minBlock;
+			this.maxBlock = maxBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxBlock - minBlock <= SEQUENTIAL_CUTOFF) {
+				for (int block = minBlock; block < maxBlock; block++) {
+					int start = block * blockSize;
+					int end = Math.min(start + blockSize, data.size);
+					PreprocessResult box = CoordinateKernels.INSTANCE.findCornersPop(data, start, end);
+					minLon[block] = box.lowLon;
+					minLat[block] = box.lowLat;
+					maxLon[block] = box.highLon;
+					maxLat[block] = box.highLat;
+					population[block] = box.totPop;
+				}
+			} else {
+				int mid = (minBlock + maxBlock) / 2;
+				Summarize left = new Summarize(data, minBlock, mid);
+				Summarize right = new Summarize(data, mid, maxBlock);
+				left.fork();
+				right.compute();
+				left.join();
+			}
+		}
+	}
+}